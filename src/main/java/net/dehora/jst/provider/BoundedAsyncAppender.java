@@ -0,0 +1,232 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.AppenderAttachableImpl;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A log4j appender that hands events to its attached appenders on a
+ * background thread, so request threads never wait on log I/O.</p>
+ * <p/>
+ * <p>Unlike log4j's own AsyncAppender, which blocks callers once its
+ * buffer is full, this one drops the event and counts it. The count is
+ * reported as a warning once the backlog clears. Configure it in log4j.xml
+ * with a 'BufferSize' param (default 512) and one or more appender-refs.</p>
+ * <p/>
+ * <p>The dispatcher thread runs until the appender is closed.
+ * {@link StringTemplateProviderListener} closes every one of these
+ * appenders when the webapp is undeployed, through {@link #closeAll()}.</p>
+ */
+public class BoundedAsyncAppender extends AppenderSkeleton implements AppenderAttachable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 512;
+
+    private final AppenderAttachableImpl _appenders = new AppenderAttachableImpl();
+    private final AtomicLong _discarded = new AtomicLong();
+    private int _bufferSize = DEFAULT_BUFFER_SIZE;
+    private volatile BlockingQueue<LoggingEvent> _queue;
+    private Thread _dispatcher;
+
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        _bufferSize = bufferSize;
+    }
+
+    @Override
+    public void activateOptions() {
+        if (_bufferSize < 1) {
+            LogLog.warn("BufferSize of [" + _bufferSize + "] is too small, defaulting to " + DEFAULT_BUFFER_SIZE);
+            _bufferSize = DEFAULT_BUFFER_SIZE;
+        }
+        _queue = new ArrayBlockingQueue<LoggingEvent>(_bufferSize);
+        _dispatcher = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "BoundedAsyncAppender-" + getName());
+        _dispatcher.setDaemon(true);
+        _dispatcher.start();
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        final BlockingQueue<LoggingEvent> queue = _queue;
+        if (queue == null) {
+            // not activated, fall back to logging on the caller's thread
+            appendLoopOnAppenders(event);
+            return;
+        }
+        // capture the caller's thread state before another thread renders it
+        event.getNDC();
+        event.getThreadName();
+        event.getMDCCopy();
+        event.getRenderedMessage();
+        event.getThrowableStrRep();
+        if (!queue.offer(event)) {
+            _discarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * Detaches every BoundedAsyncAppender from the loggers of the current
+     * log4j hierarchy and closes it, writing out what it still holds.
+     */
+    public static void closeAll() {
+        final List<Logger> loggers = new ArrayList<Logger>();
+        loggers.add(LogManager.getRootLogger());
+        final Enumeration<?> current = LogManager.getCurrentLoggers();
+        while (current.hasMoreElements()) {
+            loggers.add((Logger) current.nextElement());
+        }
+        for (Logger logger : loggers) {
+            final List<BoundedAsyncAppender> found = new ArrayList<BoundedAsyncAppender>();
+            final Enumeration<?> appenders = logger.getAllAppenders();
+            while (appenders.hasMoreElements()) {
+                final Object appender = appenders.nextElement();
+                if (appender instanceof BoundedAsyncAppender) {
+                    found.add((BoundedAsyncAppender) appender);
+                }
+            }
+            for (BoundedAsyncAppender appender : found) {
+                logger.removeAppender(appender);
+                appender.close();
+            }
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (_dispatcher != null) {
+            _dispatcher.interrupt();
+            try {
+                _dispatcher.join(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final BlockingQueue<LoggingEvent> queue = _queue;
+        if (queue != null) {
+            LoggingEvent event;
+            while ((event = queue.poll()) != null) {
+                appendLoopOnAppenders(event);
+            }
+        }
+        synchronized (_appenders) {
+            final Enumeration<?> appenders = _appenders.getAllAppenders();
+            while (appenders != null && appenders.hasMoreElements()) {
+                ((Appender) appenders.nextElement()).close();
+            }
+        }
+    }
+
+    public boolean requiresLayout() {
+        return false;
+    }
+
+    public void addAppender(Appender appender) {
+        synchronized (_appenders) {
+            _appenders.addAppender(appender);
+        }
+    }
+
+    public Enumeration<?> getAllAppenders() {
+        synchronized (_appenders) {
+            return _appenders.getAllAppenders();
+        }
+    }
+
+    public Appender getAppender(String name) {
+        synchronized (_appenders) {
+            return _appenders.getAppender(name);
+        }
+    }
+
+    public boolean isAttached(Appender appender) {
+        synchronized (_appenders) {
+            return _appenders.isAttached(appender);
+        }
+    }
+
+    public void removeAllAppenders() {
+        synchronized (_appenders) {
+            _appenders.removeAllAppenders();
+        }
+    }
+
+    public void removeAppender(Appender appender) {
+        synchronized (_appenders) {
+            _appenders.removeAppender(appender);
+        }
+    }
+
+    public void removeAppender(String name) {
+        synchronized (_appenders) {
+            _appenders.removeAppender(name);
+        }
+    }
+
+    private void dispatch() {
+        final BlockingQueue<LoggingEvent> queue = _queue;
+        try {
+            while (!closed) {
+                appendLoopOnAppenders(queue.take());
+                if (queue.isEmpty()) {
+                    reportDiscarded();
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void reportDiscarded() {
+        final long discarded = _discarded.getAndSet(0L);
+        if (discarded > 0) {
+            appendLoopOnAppenders(new LoggingEvent(BoundedAsyncAppender.class.getName(),
+                    Logger.getLogger(BoundedAsyncAppender.class), Level.WARN,
+                    "Discarded " + discarded + " log events, the buffer of " + _bufferSize + " was full", null));
+        }
+    }
+
+    private void appendLoopOnAppenders(LoggingEvent event) {
+        synchronized (_appenders) {
+            _appenders.appendLoopOnAppenders(event);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * <p>Reads templates from a single jar of templates. The jar's directory is
+ * read once, when the source is created, into an in-memory index, so
+ * lookups and listings never go back to the archive; only reading a
+ * template does.</p>
+ * <p/>
+ * <p>The jar entry <tt>pages/home.st</tt> has the template path
+ * <tt>/pages/home.st</tt>. The jar is held open until the source is
+ * closed; a temporary jar, such as one copied out of a packed war, is
+ * deleted then as well.</p>
+ */
+class BundleTemplateSource implements TemplateSource, Closeable {
+
+    private final File _bundle;
+    private final boolean _temporary;
+    private final JarFile _jar;
+    private final Map<String, JarEntry> _entries = new HashMap<String, JarEntry>();
+    private final Map<String, Set<String>> _directories = new HashMap<String, Set<String>>();
+
+    BundleTemplateSource(final File bundle, final boolean temporary) throws IOException {
+        _bundle = bundle;
+        _temporary = temporary;
+        try {
+            _jar = new JarFile(bundle);
+        } catch (IOException e) {
+            deleteTemporary();
+            throw e;
+        }
+        final Enumeration<JarEntry> entries = _jar.entries();
+        while (entries.hasMoreElements()) {
+            final JarEntry entry = entries.nextElement();
+            final String path = "/" + entry.getName();
+            if (!entry.isDirectory()) {
+                _entries.put(path, entry);
+            }
+            index(path);
+        }
+    }
+
+    int size() {
+        return _entries.size();
+    }
+
+    public boolean exists(final String path) {
+        return _entries.containsKey(path);
+    }
+
+    public InputStream open(final String path) throws IOException {
+        final JarEntry entry = _entries.get(path);
+        return entry == null ? null : _jar.getInputStream(entry);
+    }
+
+    public Set<String> list(final String directory) {
+        final Set<String> children = _directories.get(directory);
+        return children == null ? null : Collections.unmodifiableSet(children);
+    }
+
+    public void close() throws IOException {
+        try {
+            _jar.close();
+        } finally {
+            deleteTemporary();
+        }
+    }
+
+    private void deleteTemporary() {
+        if (_temporary && !_bundle.delete() && _bundle.exists()) {
+            _bundle.deleteOnExit();
+        }
+    }
+
+    // adds the path, and any parent directories not already listed, to their parents' listings
+    private void index(final String path) {
+        final int end = path.endsWith("/") ? path.length() - 1 : path.length();
+        final int slash = path.lastIndexOf('/', end - 1);
+        if (slash < 0) {
+            return;
+        }
+        final String parent = path.substring(0, slash + 1);
+        Set<String> children = _directories.get(parent);
+        if (children == null) {
+            children = new HashSet<String>();
+            _directories.put(parent, children);
+        }
+        if (children.add(path) && slash > 0) {
+            index(parent);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * <p>Reads templates from the classpath, so they can ship inside a jar and
+ * be used outside a servlet container. A template path of
+ * <tt>/templates/home.st</tt> is the classpath resource
+ * <tt>templates/home.st</tt>.</p>
+ * <p/>
+ * <p>Class loaders can't list directories, so precompiling and finding
+ * ".stg" group files need the servlet context or a template bundle.</p>
+ */
+class ClasspathTemplateSource implements TemplateSource {
+
+    private final ClassLoader _classLoader;
+
+    ClasspathTemplateSource(final ClassLoader classLoader) {
+        _classLoader = classLoader;
+    }
+
+    public boolean exists(final String path) {
+        return _classLoader.getResource(toResourceName(path)) != null;
+    }
+
+    public InputStream open(final String path) throws IOException {
+        return _classLoader.getResourceAsStream(toResourceName(path));
+    }
+
+    public Set<String> list(final String directory) {
+        return null;
+    }
+
+    private static String toResourceName(final String path) {
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+}
@@ -0,0 +1,400 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import antlr.collections.AST;
+import org.antlr.stringtemplate.StringTemplate;
+import org.antlr.stringtemplate.StringTemplateWriter;
+import org.antlr.stringtemplate.language.ASTExpr;
+import org.antlr.stringtemplate.language.ActionEvaluatorTokenTypes;
+import org.antlr.stringtemplate.language.Expr;
+import org.antlr.stringtemplate.language.NewlineRef;
+import org.antlr.stringtemplate.language.StringRef;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A parsed template flattened into a plan of segments, for templates
+ * that are rendered often enough to be worth it.</p>
+ * <p/>
+ * <p>Literal text is written directly, and plain attribute references such
+ * as <tt>$name$</tt> and <tt>$it.name$</tt> with no options read the
+ * attribute straight from the template instead of walking the expression
+ * tree with an ActionEvaluator. Everything else, such as conditionals,
+ * template applications and options, is left to StringTemplate's
+ * interpreter. {@link #write} follows StringTemplate.write(), including how
+ * it drops the newline after an expression that wrote nothing.</p>
+ * <p/>
+ * <p>When compiled with {@link PropertyAccessors}, <tt>$it.name$</tt> on a
+ * bean calls the getter found the first time that bean's class was seen.
+ * Map keys, template attributes and missing properties still go through
+ * StringTemplate.</p>
+ * <p/>
+ * <p>When compiled with a charset, literal text is also encoded up front,
+ * and an {@link EncodedLiteralWriter} copies those bytes to the response
+ * without running them through the encoder again.</p>
+ * <p/>
+ * <p>A plan is built from a template prototype's chunks and can render any
+ * instance of that prototype; {@link #isPlanFor} tells whether an instance
+ * shares those chunks.</p>
+ */
+class CompiledTemplate {
+
+    abstract static class Segment {
+        private final boolean _newline;
+
+        Segment(final boolean newline) {
+            _newline = newline;
+        }
+
+        boolean isNewline() {
+            return _newline;
+        }
+
+        abstract int write(StringTemplate self, StringTemplateWriter out) throws IOException;
+    }
+
+    static final class Literal extends Segment {
+        private final String _text;
+        // set when the literal was pre-encoded, see EncodedLiteralWriter
+        private final String _encodedNewline;
+        private final byte[] _encoded;
+        private final int _written;
+        private final boolean _hasLineBreak;
+        private final boolean _endsAtStartOfLine;
+        private final int _charPositionAfterLineBreak;
+
+        Literal(final String text, final boolean newline, final Charset charset) {
+            super(newline);
+            _text = text;
+            if (charset == null) {
+                _encodedNewline = null;
+                _encoded = null;
+                _written = 0;
+                _hasLineBreak = false;
+                _endsAtStartOfLine = false;
+                _charPositionAfterLineBreak = 0;
+                return;
+            }
+            // lay the text out as AutoIndentWriter.write(String) would with no indentation
+            final String lineSeparator = System.getProperty("line.separator");
+            final StringBuilder laidOut = new StringBuilder(text.length() + 8);
+            boolean hasLineBreak = false;
+            boolean atStartOfLine = false;
+            int written = 0;
+            int charPosition = 0;
+            for (int i = 0; i < text.length(); i++) {
+                final char c = text.charAt(i);
+                if (c == '\r' || c == '\n') {
+                    hasLineBreak = true;
+                    atStartOfLine = true;
+                    charPosition = -1;
+                    written += lineSeparator.length();
+                    laidOut.append(lineSeparator);
+                    charPosition += written;
+                    if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                        i++;
+                    }
+                } else {
+                    atStartOfLine = false;
+                    written++;
+                    laidOut.append(c);
+                    charPosition++;
+                }
+            }
+            _encodedNewline = lineSeparator;
+            _encoded = encode(laidOut.toString(), charset);
+            _written = written;
+            _hasLineBreak = hasLineBreak;
+            _endsAtStartOfLine = atStartOfLine;
+            _charPositionAfterLineBreak = charPosition;
+        }
+
+        String getText() {
+            return _text;
+        }
+
+        boolean isEncodedFor(final String newline) {
+            return _encoded != null && _encodedNewline.equals(newline);
+        }
+
+        byte[] getEncoded() {
+            return _encoded;
+        }
+
+        int getWritten() {
+            return _written;
+        }
+
+        boolean hasLineBreak() {
+            return _hasLineBreak;
+        }
+
+        boolean endsAtStartOfLine() {
+            return _endsAtStartOfLine;
+        }
+
+        int getCharPositionAfterLineBreak() {
+            return _charPositionAfterLineBreak;
+        }
+
+        int write(final StringTemplate self, final StringTemplateWriter out) throws IOException {
+            if (_encoded != null && out instanceof EncodedLiteralWriter) {
+                return ((EncodedLiteralWriter) out).writeLiteral(this);
+            }
+            return out.write(_text);
+        }
+
+        private static byte[] encode(final String text, final Charset charset) {
+            try {
+                final ByteBuffer buffer = charset.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                        .encode(CharBuffer.wrap(text));
+                final byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                return bytes;
+            } catch (CharacterCodingException e) {
+                // can't happen with REPLACE
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+    }
+
+    static final class AttributeReference extends Segment {
+        private final ASTExpr _expr;
+        private final String _attribute;
+        private final String _property;
+        private final PropertyAccessors _accessors;
+        // the accessor used last time; most references only ever see one class
+        private volatile PropertyAccessors.Accessor _lastAccessor;
+
+        AttributeReference(final ASTExpr expr, final String attribute, final String property,
+                           final PropertyAccessors accessors) {
+            super(false);
+            _expr = expr;
+            _attribute = attribute;
+            _property = property;
+            _accessors = accessors;
+        }
+
+        int write(final StringTemplate self, final StringTemplateWriter out) throws IOException {
+            Object value = self.getAttribute(_attribute);
+            if (_property != null && value != null) {
+                value = getProperty(self, value);
+            }
+            if (value == null) {
+                return 0;
+            }
+            out.pushIndentation(_expr.getIndentation());
+            try {
+                if (isPlainValue(value) && self.getAttributeRenderer(value.getClass()) == null) {
+                    return out.write(value.toString());
+                }
+                return _expr.writeAttribute(self, value, out);
+            } finally {
+                out.popIndentation();
+            }
+        }
+
+        private Object getProperty(final StringTemplate self, final Object bean) {
+            if (_accessors == null || !PropertyAccessors.isBean(bean)) {
+                return _expr.getObjectProperty(self, bean, _property);
+            }
+            PropertyAccessors.Accessor accessor = _lastAccessor;
+            if (accessor == null || accessor.getType() != bean.getClass()) {
+                accessor = _accessors.accessorFor(bean.getClass(), _property);
+                if (accessor == null) {
+                    // let StringTemplate report the missing property
+                    return _expr.getObjectProperty(self, bean, _property);
+                }
+                _lastAccessor = accessor;
+            }
+            return PropertyAccessors.read(accessor, self, bean, _property);
+        }
+    }
+
+    static final class Interpreted extends Segment {
+        private final Expr _expr;
+
+        Interpreted(final Expr expr) {
+            super(false);
+            _expr = expr;
+        }
+
+        int write(final StringTemplate self, final StringTemplateWriter out) throws IOException {
+            return _expr.write(self, out);
+        }
+    }
+
+    private static final Field OPTIONS_FIELD = findOptionsField();
+
+    private final List<?> _chunks;
+    private final Segment[] _segments;
+    private final int _attributeReferences;
+
+    private CompiledTemplate(final List<?> chunks, final Segment[] segments, final int attributeReferences) {
+        _chunks = chunks;
+        _segments = segments;
+        _attributeReferences = attributeReferences;
+    }
+
+    static CompiledTemplate compile(final StringTemplate prototype) {
+        return compile(prototype, null);
+    }
+
+    /**
+     * @param charset if not null, literal text is also pre-encoded in this
+     *                charset for an {@link EncodedLiteralWriter}
+     */
+    static CompiledTemplate compile(final StringTemplate prototype, final Charset charset) {
+        return compile(prototype, charset, null);
+    }
+
+    /**
+     * @param charset   if not null, literal text is also pre-encoded in this
+     *                  charset for an {@link EncodedLiteralWriter}
+     * @param accessors if not null, bean properties are read through these
+     *                  rather than looked up by StringTemplate on each read
+     */
+    static CompiledTemplate compile(final StringTemplate prototype, final Charset charset,
+                                    final PropertyAccessors accessors) {
+        final List<?> chunks = prototype.getChunks();
+        final int size = chunks == null ? 0 : chunks.size();
+        final Segment[] segments = new Segment[size];
+        int attributeReferences = 0;
+        for (int i = 0; i < size; i++) {
+            final Expr chunk = (Expr) chunks.get(i);
+            if (chunk instanceof StringRef) {
+                segments[i] = new Literal(chunk.toString(), chunk instanceof NewlineRef, charset);
+            } else if (chunk.getClass() == ASTExpr.class && hasNoOptions((ASTExpr) chunk)) {
+                segments[i] = compileExpr((ASTExpr) chunk, accessors);
+                if (segments[i] instanceof AttributeReference) {
+                    attributeReferences++;
+                }
+            } else {
+                segments[i] = new Interpreted(chunk);
+            }
+        }
+        return new CompiledTemplate(chunks, segments, attributeReferences);
+    }
+
+    boolean isPlanFor(final StringTemplate template) {
+        return template.getChunks() == _chunks;
+    }
+
+    Segment[] getSegments() {
+        return _segments;
+    }
+
+    int getAttributeReferences() {
+        return _attributeReferences;
+    }
+
+    int write(final StringTemplate self, final StringTemplateWriter out) throws IOException {
+        if (StringTemplate.inLintMode()) {
+            return self.write(out);
+        }
+        self.setPredefinedAttributes();
+        self.setDefaultArgumentValues();
+        final int size = _segments.length;
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            final int chunkN = _segments[i].write(self, out);
+            // expr-on-first-line-with-no-output NEWLINE => NEWLINE
+            if (chunkN == 0 && i == 0 && i + 1 < size && _segments[i + 1].isNewline()) {
+                i++;
+                continue;
+            }
+            // NEWLINE expr-with-no-output NEWLINE => NEWLINE
+            if (chunkN == 0 && i - 1 >= 0 && _segments[i - 1].isNewline() && i + 1 < size && _segments[i + 1].isNewline()) {
+                i++;
+            }
+            n += chunkN;
+        }
+        return n;
+    }
+
+    private static Segment compileExpr(final ASTExpr expr, final PropertyAccessors accessors) {
+        final AST tree = expr.getAST();
+        if (tree == null) {
+            return new Interpreted(expr);
+        }
+        if (tree.getType() == ActionEvaluatorTokenTypes.ID && tree.getFirstChild() == null) {
+            return new AttributeReference(expr, tree.getText(), null, accessors);
+        }
+        if (tree.getType() == ActionEvaluatorTokenTypes.DOT) {
+            final AST attribute = tree.getFirstChild();
+            final AST property = attribute == null ? null : attribute.getNextSibling();
+            if (isBareId(attribute) && isBareId(property) && property.getNextSibling() == null) {
+                return new AttributeReference(expr, attribute.getText(), property.getText(), accessors);
+            }
+        }
+        return new Interpreted(expr);
+    }
+
+    private static boolean isBareId(final AST node) {
+        return node != null && node.getType() == ActionEvaluatorTokenTypes.ID && node.getFirstChild() == null;
+    }
+
+    /**
+     * Values StringTemplate writes with toString() rather than iterating
+     * over or rendering as a template.
+     */
+    private static boolean isPlainValue(final Object value) {
+        return !(value instanceof StringTemplate
+                || value instanceof Collection
+                || value instanceof Map
+                || value instanceof Iterator
+                || value instanceof Enumeration
+                || value.getClass().isArray());
+    }
+
+    private static boolean hasNoOptions(final ASTExpr expr) {
+        if (OPTIONS_FIELD == null) {
+            return false;
+        }
+        try {
+            return OPTIONS_FIELD.get(expr) == null;
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+    }
+
+    // ASTExpr has no public accessor for its options; without one every expression is interpreted
+    private static Field findOptionsField() {
+        try {
+            final Field field = ASTExpr.class.getDeclaredField("options");
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * <p>A StringTemplateWriter that copies the pre-encoded bytes of a
+ * {@link CompiledTemplate}'s literal text straight into the response
+ * buffer, while expression output is encoded as usual.</p>
+ * <p/>
+ * <p>The bytes are only used when AutoIndentWriter would have written the
+ * text unchanged, that is with no indentation or anchors in effect.
+ * Otherwise the literal is written as text. Either way the writer's line
+ * position is kept up to date for the expressions that follow.</p>
+ */
+class EncodedLiteralWriter extends FlushingWriter {
+
+    private ResponseEncoding.EncodingWriter _encodingWriter;
+
+    EncodedLiteralWriter(final ResponseEncoding.EncodingWriter out) {
+        super(out);
+        _encodingWriter = out;
+    }
+
+    @Override
+    void reset(final Writer writer) {
+        super.reset(writer);
+        _encodingWriter = (ResponseEncoding.EncodingWriter) writer;
+    }
+
+    int writeLiteral(final CompiledTemplate.Literal literal) throws IOException {
+        if (!literal.isEncodedFor(newline) || anchors_sp != -1 || indents.size() != 1 || indents.get(0) != null) {
+            return write(literal.getText());
+        }
+        _encodingWriter.writeEncoded(literal.getEncoded());
+        if (literal.hasLineBreak()) {
+            atStartOfLine = literal.endsAtStartOfLine();
+            charPosition = literal.getCharPositionAfterLineBreak();
+        } else if (literal.getWritten() > 0) {
+            atStartOfLine = false;
+            charPosition += literal.getWritten();
+        }
+        return literal.getWritten();
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>Makes strong ETags from page bytes and checks them against
+ * If-None-Match.</p>
+ * <p/>
+ * <p>The tag is an MD5 of exactly the bytes sent, so a gzipped page gets a
+ * different tag from the same page uncompressed, and two servers rendering
+ * the same page agree on its tag.</p>
+ */
+final class EntityTags {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> _digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                // every JRE has MD5
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+    };
+
+    private EntityTags() {
+    }
+
+    /**
+     * Returns the quoted strong ETag for the bytes.
+     */
+    static String of(final byte[] bytes) {
+        return of(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Returns the quoted strong ETag for <tt>len</tt> bytes starting at
+     * <tt>off</tt>.
+     */
+    static String of(final byte[] bytes, final int off, final int len) {
+        final MessageDigest digest = _digests.get();
+        digest.reset();
+        digest.update(bytes, off, len);
+        final byte[] hash = digest.digest();
+        final char[] tag = new char[hash.length * 2 + 2];
+        tag[0] = '"';
+        for (int i = 0; i < hash.length; i++) {
+            tag[1 + i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            tag[2 + i * 2] = HEX[hash[i] & 0xf];
+        }
+        tag[tag.length - 1] = '"';
+        return new String(tag);
+    }
+
+    /**
+     * True if an If-None-Match header names the tag, or is <tt>*</tt>.
+     * Comparison is weak, as If-None-Match calls for, so <tt>W/</tt>
+     * prefixes are ignored.
+     */
+    static boolean matches(final String ifNoneMatch, final String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || etag.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import org.antlr.stringtemplate.StringTemplate;
+import org.antlr.stringtemplate.StringTemplateGroup;
+import org.antlr.stringtemplate.StringTemplateWriter;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * <p>The template behind <tt>$flush()$</tt>, which sends everything the
+ * page has rendered so far to the client, typically the document head, so
+ * the browser can start fetching stylesheets and scripts while the rest of
+ * the page is still being rendered.</p>
+ * <p/>
+ * <p>The marker writes nothing itself. It flushes the writer it's given
+ * if that writer is {@link Flushable}, which only the provider's page
+ * writers are, so a marker in a fragment or in text rendered for some
+ * other purpose does nothing.</p>
+ */
+class FlushMarker extends StringTemplate {
+
+    static final String NAME = "flush";
+
+    FlushMarker(final StringTemplateGroup group) {
+        setName(NAME);
+        setGroup(group);
+        setNativeGroup(group);
+    }
+
+    @Override
+    public StringTemplate getInstanceOf() {
+        return new FlushMarker(getGroup());
+    }
+
+    @Override
+    public int write(final StringTemplateWriter out) throws IOException {
+        if (out instanceof Flushable) {
+            ((Flushable) out).flush();
+        }
+        return 0;
+    }
+}
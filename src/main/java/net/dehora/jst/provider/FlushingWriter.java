@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import org.antlr.stringtemplate.AutoIndentWriter;
+import org.antlr.stringtemplate.StringTemplateWriter;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * <p>An AutoIndentWriter that a {@link FlushMarker} can flush, passing the
+ * flush on to the writer underneath. It can be reset and used for another
+ * page, rather than made anew for each one.</p>
+ */
+class FlushingWriter extends AutoIndentWriter implements Flushable {
+
+    FlushingWriter(final Writer out) {
+        super(out);
+    }
+
+    /**
+     * Puts the writer back the way AutoIndentWriter's constructor leaves
+     * it, writing to another writer.
+     */
+    @SuppressWarnings({"unchecked"})
+    void reset(final Writer writer) {
+        out = writer;
+        indents.clear();
+        indents.add(null);
+        anchors_sp = -1;
+        atStartOfLine = true;
+        charPosition = 0;
+        lineWidth = StringTemplateWriter.NO_WRAP;
+        charPositionOfStartOfExpr = 0;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
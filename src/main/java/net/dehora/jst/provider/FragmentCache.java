@@ -0,0 +1,292 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import org.antlr.stringtemplate.StringTemplate;
+import org.antlr.stringtemplate.StringTemplateWriter;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Keeps the rendered text of sub-templates that are declared cacheable,
+ * keyed by the template's name and the values of the attributes it
+ * depends on, and shares it across requests and parent templates.</p>
+ * <p/>
+ * <p>A cacheable template is handed out as a {@link Fragment}, which looks
+ * up its text before rendering and caches it afterwards. Attribute values
+ * are read as the template itself would read them, through its enclosing
+ * templates, and are matched with <tt>equals()</tt>. Only Strings,
+ * Numbers and Booleans are used as keys; a fragment whose key holds
+ * anything else, such as a bean or a template, is rendered without the
+ * cache and a warning is logged. Attributes a fragment uses but that
+ * aren't named in its key must not change what it renders.</p>
+ * <p/>
+ * <p>A fragment missing from the cache is rendered once: requests that
+ * want the same fragment while it renders wait for its text.</p>
+ * <p/>
+ * <p>The cache holds at most <tt>maxEntries</tt> fragments and drops the
+ * least recently used one to make room. Fragments expire after their
+ * template's ttl; a ttl of zero or less means they live until
+ * {@link #clear()}.</p>
+ */
+class FragmentCache {
+
+    /**
+     * How a cacheable template is keyed and how long its text lives.
+     */
+    static final class Spec {
+        private final String[] _attributes;
+        private final long _ttlMillis;
+
+        Spec(final String[] attributes, final long ttlMillis) {
+            _attributes = attributes;
+            _ttlMillis = ttlMillis;
+        }
+    }
+
+    /**
+     * An instance of a cacheable template.
+     */
+    static final class Fragment extends StringTemplate {
+        private final FragmentCache _cache;
+        private final Spec _spec;
+
+        private Fragment(final StringTemplate prototype, final FragmentCache cache, final Spec spec) {
+            _cache = cache;
+            _spec = spec;
+            dup(prototype, this);
+        }
+
+        @Override
+        public int write(final StringTemplateWriter out) throws IOException {
+            final Object[] values = new Object[_spec._attributes.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = get(this, _spec._attributes[i]);
+                if (!isKeyValue(values[i])) {
+                    _cache.warnNotKeyable(getName(), _spec._attributes[i], values[i]);
+                    return super.write(out);
+                }
+            }
+            final Key key = new Key(getName(), values);
+            String text = _cache.get(key);
+            if (text == null) {
+                text = _cache.render(key, this);
+            }
+            return out.write(text);
+        }
+
+        private String render() throws IOException {
+            final StringWriter rendered = new StringWriter();
+            super.write(getGroup().getStringTemplateWriter(rendered));
+            return rendered.toString();
+        }
+    }
+
+    /**
+     * A fragment being rendered, which other threads wanting it wait on.
+     */
+    private static final class Render extends FutureTask<String> {
+        private final Thread _thread = Thread.currentThread();
+
+        Render(final Fragment fragment) {
+            super(new Callable<String>() {
+                public String call() throws IOException {
+                    return fragment.render();
+                }
+            });
+        }
+    }
+
+    private static final class Key {
+        private final String _name;
+        private final Object[] _values;
+        private final int _hash;
+
+        Key(final String name, final Object[] values) {
+            _name = name;
+            _values = values;
+            _hash = 31 * name.hashCode() + Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return _hash == other._hash && _name.equals(other._name) && Arrays.equals(_values, other._values);
+        }
+    }
+
+    private static final class Entry {
+        private final String _text;
+        private final long _expiresAt;
+
+        Entry(final String text, final long expiresAt) {
+            _text = text;
+            _expiresAt = expiresAt;
+        }
+    }
+
+    private static final Logger _theLog = Logger.getLogger(FragmentCache.class);
+    private static final long WARN_INTERVAL_MILLIS = 60000L;
+    private static final int WARN_MAX_KEYS = 1024;
+
+    private final int _maxEntries;
+    private final Map<String, Spec> _specs;
+    private final Map<Key, Entry> _entries;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final ConcurrentMap<Key, Render> _rendering = new ConcurrentHashMap<Key, Render>();
+    private final LogThrottle _warnings = new LogThrottle(WARN_INTERVAL_MILLIS, WARN_MAX_KEYS);
+
+    FragmentCache(final int maxEntries, final Map<String, Spec> specs) {
+        _maxEntries = maxEntries;
+        _specs = new HashMap<String, Spec>(specs);
+        _entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, FragmentCache.Entry> eldest) {
+                return size() > _maxEntries;
+            }
+        };
+    }
+
+    boolean isEnabled() {
+        return _maxEntries > 0 && !_specs.isEmpty();
+    }
+
+    /**
+     * Returns an instance of the prototype, which is a {@link Fragment} if
+     * the template is cacheable.
+     */
+    StringTemplate getInstanceOf(final StringTemplate prototype) {
+        final Spec spec = isEnabled() ? _specs.get(prototype.getName()) : null;
+        return spec == null ? prototype.getInstanceOf() : new Fragment(prototype, this, spec);
+    }
+
+    void clear() {
+        synchronized (_entries) {
+            _entries.clear();
+        }
+    }
+
+    long getHits() {
+        return _hits.get();
+    }
+
+    long getMisses() {
+        return _misses.get();
+    }
+
+    private String get(final Key key) {
+        final Entry entry;
+        synchronized (_entries) {
+            entry = _entries.get(key);
+            if (entry != null && entry._expiresAt < System.currentTimeMillis()) {
+                _entries.remove(key);
+                _misses.incrementAndGet();
+                return null;
+            }
+        }
+        if (entry == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        _hits.incrementAndGet();
+        return entry._text;
+    }
+
+    /**
+     * Renders the fragment and caches its text, or waits for the thread
+     * that is already rendering it.
+     */
+    private String render(final Key key, final Fragment fragment) throws IOException {
+        final Render render = new Render(fragment);
+        final Render running = _rendering.putIfAbsent(key, render);
+        if (running != null) {
+            if (running._thread != Thread.currentThread()) {
+                try {
+                    return running.get();
+                } catch (ExecutionException e) {
+                    // the rendering thread reports its own failure; try again here
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return fragment.render();
+        }
+        try {
+            render.run();
+            final String text = render.get();
+            put(key, text, fragment._spec._ttlMillis);
+            return text;
+        } catch (InterruptedException e) {
+            // can't happen, the task has run
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        } finally {
+            _rendering.remove(key, render);
+        }
+    }
+
+    private void warnNotKeyable(final String name, final String attribute, final Object value) {
+        if (_warnings.allow(name + "." + attribute)) {
+            _theLog.warn("Fragment [" + name + "] is keyed on attribute [" + attribute + "], whose value is a "
+                    + value.getClass().getName() + " rather than a String, Number or Boolean; rendering it without the cache");
+        }
+    }
+
+    private static boolean isKeyValue(final Object value) {
+        return value == null || value instanceof String || value instanceof Number || value instanceof Boolean;
+    }
+
+    private void put(final Key key, final String text, final long ttlMillis) {
+        final long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        synchronized (_entries) {
+            _entries.put(key, new Entry(text, expiresAt));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A lock-free histogram of latencies in microseconds.</p>
+ * <p/>
+ * <p>Like HdrHistogram, each power of two is split into linear sub-buckets,
+ * here eight of them, so a recorded value is off by at most 1/8th of its
+ * magnitude. Values from 0 up to 2^43 microseconds (about three months)
+ * are covered; larger values land in the top bucket.</p>
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAGNITUDES = 40;
+
+    private final AtomicLongArray _counts = new AtomicLongArray((MAGNITUDES + 1) * SUB_BUCKETS);
+    private final AtomicLong _total = new AtomicLong();
+    private final AtomicLong _max = new AtomicLong();
+
+    void record(final long micros) {
+        final long value = Math.max(0L, micros);
+        _counts.incrementAndGet(indexOf(value));
+        _total.incrementAndGet();
+        long max;
+        while (value > (max = _max.get())) {
+            if (_max.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    long getCount() {
+        return _total.get();
+    }
+
+    long getMax() {
+        return _max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile,
+     * or 0 if nothing has been recorded.
+     */
+    long getPercentile(final double percentile) {
+        final long total = _total.get();
+        if (total == 0) {
+            return 0L;
+        }
+        final long wanted = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < _counts.length(); i++) {
+            seen += _counts.get(i);
+            if (seen >= wanted) {
+                return Math.min(upperBoundOf(i), _max.get());
+            }
+        }
+        return _max.get();
+    }
+
+    private static int indexOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        if (magnitude > MAGNITUDES) {
+            return (MAGNITUDES + 1) * SUB_BUCKETS - 1;
+        }
+        final int subBucket = (int) (value >>> (magnitude - 1)) - SUB_BUCKETS;
+        return magnitude * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(final int index) {
+        final int magnitude = index / SUB_BUCKETS;
+        final int subBucket = index % SUB_BUCKETS;
+        if (magnitude == 0) {
+            return subBucket;
+        }
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (magnitude - 1)) - 1;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Limits how often a message about the same thing is logged.</p>
+ * <p/>
+ * <p>{@link #allow(String)} says yes at most once per interval for each
+ * key. At most <tt>maxKeys</tt> keys are tracked; past that the record is
+ * cleared, which can let a few repeats through early.</p>
+ */
+class LogThrottle {
+
+    private final long _intervalMillis;
+    private final int _maxKeys;
+    private final ConcurrentMap<String, Long> _lastLogged = new ConcurrentHashMap<String, Long>();
+
+    LogThrottle(final long intervalMillis, final int maxKeys) {
+        _intervalMillis = intervalMillis;
+        _maxKeys = maxKeys;
+    }
+
+    long getIntervalMillis() {
+        return _intervalMillis;
+    }
+
+    boolean allow(final String key) {
+        if (_intervalMillis <= 0) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        final Long last = _lastLogged.get(key);
+        if (last != null && now - last < _intervalMillis) {
+            return false;
+        }
+        if (last == null) {
+            if (_lastLogged.size() >= _maxKeys) {
+                _lastLogged.clear();
+            }
+            return _lastLogged.putIfAbsent(key, now) == null;
+        }
+        return _lastLogged.replace(key, last, now);
+    }
+}
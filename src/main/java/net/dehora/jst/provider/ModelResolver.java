@@ -0,0 +1,373 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import antlr.collections.AST;
+import org.antlr.stringtemplate.StringTemplate;
+import org.antlr.stringtemplate.StringTemplateGroup;
+import org.antlr.stringtemplate.language.ASTExpr;
+import org.antlr.stringtemplate.language.ActionEvaluatorTokenTypes;
+import org.antlr.stringtemplate.language.ConditionalExpr;
+import org.antlr.stringtemplate.language.StringTemplateAST;
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Replaces <tt>Future</tt> and <tt>Callable</tt> values in a model with
+ * their results before the page renders, waiting on all of them at once so
+ * a page backed by several slow calls takes as long as the slowest one
+ * rather than their sum.</p>
+ * <p/>
+ * <p>Only values the template can reach are resolved. The names a template
+ * refers to, directly, in anonymous and conditional sub-templates, and in
+ * the templates it includes, are collected once per parse of the template.
+ * A template that includes another by computed name could refer to
+ * anything, so every value is resolved for it.</p>
+ * <p/>
+ * <p>Callables run on a fixed set of daemon threads, never on the request
+ * thread, and wait their turn when all of them are busy. The request
+ * thread waits no longer than the timeout, however long the Callables
+ * take or queue. Values that fail or don't arrive in time are logged and
+ * left out of the model. Callables that time out are cancelled, and taken
+ * off the queue if they haven't started; Futures belong to the application
+ * and are left to run.</p>
+ */
+class ModelResolver {
+
+    private static final class Entry {
+        private final List<?> _chunks;
+        // null when the template could refer to anything
+        private final Set<String> _names;
+
+        Entry(final List<?> chunks, final Set<String> names) {
+            _chunks = chunks;
+            _names = names;
+        }
+    }
+
+    private static final Logger _theLog = Logger.getLogger(ModelResolver.class);
+    // ConditionalExpr keeps its elseif clauses to itself
+    private static final Field ELSE_IF_SUBTEMPLATES = declaredField(ConditionalExpr.class.getName(), "elseIfSubtemplates");
+    private static final Field ELSE_IF_EXPR = declaredField(ConditionalExpr.class.getName() + "$ElseIfClauseData", "expr");
+    private static final Field ELSE_IF_TEMPLATE = declaredField(ConditionalExpr.class.getName() + "$ElseIfClauseData", "st");
+
+    private final ThreadPoolExecutor _executor;
+    private final long _timeoutMillis;
+    private final ConcurrentMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * @param threads threads to run Callables on; 0 turns resolving off
+     */
+    ModelResolver(final int threads, final long timeoutMillis) {
+        _timeoutMillis = timeoutMillis;
+        if (threads <= 0) {
+            _executor = null;
+            return;
+        }
+        final AtomicInteger count = new AtomicInteger();
+        _executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "stringtemplate-model-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    boolean isEnabled() {
+        return _executor != null;
+    }
+
+    /**
+     * Stops the threads once the Callables already handed to them have
+     * finished or been cancelled.
+     */
+    void stop() {
+        if (_executor != null) {
+            _executor.shutdown();
+        }
+    }
+
+    /**
+     * True if the model is a Map holding Future or Callable values.
+     */
+    static boolean isDeferred(final Object model) {
+        if (!(model instanceof Map)) {
+            return false;
+        }
+        for (Object value : ((Map<?, ?>) model).values()) {
+            if (value instanceof Future || value instanceof Callable) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the names collected for every template, for example after
+     * templates were reloaded.
+     */
+    void clear() {
+        _entries.clear();
+    }
+
+    /**
+     * Resolves the Future and Callable values in the model that the template
+     * refers to, in place.
+     */
+    @SuppressWarnings({"unchecked"})
+    void resolve(final String resolvedPath, final StringTemplate template, final Map<String, Object> model) {
+        List<String> pending = null;
+        Set<String> names = null;
+        boolean namesKnown = false;
+        for (Map.Entry<String, Object> value : model.entrySet()) {
+            if (!(value.getValue() instanceof Future) && !(value.getValue() instanceof Callable)) {
+                continue;
+            }
+            if (!namesKnown) {
+                names = namesFor(template);
+                namesKnown = true;
+            }
+            if (names == null || names.contains(value.getKey())) {
+                if (pending == null) {
+                    pending = new ArrayList<String>(4);
+                }
+                pending.add(value.getKey());
+            }
+        }
+        if (pending == null) {
+            return;
+        }
+
+        final long deadline = System.currentTimeMillis() + _timeoutMillis;
+        final List<Future<?>> futures = new ArrayList<Future<?>>(pending.size());
+        // only these are ours to cancel
+        final List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>(pending.size());
+        for (int i = 0; i < pending.size(); i++) {
+            final String key = pending.get(i);
+            final Object value = model.get(key);
+            if (value instanceof Future) {
+                futures.add((Future<?>) value);
+                continue;
+            }
+            final FutureTask<Object> task = new FutureTask<Object>((Callable<Object>) value);
+            try {
+                _executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // stopped while this request was on its way in
+                pending.remove(i--);
+                model.remove(key);
+                _theLog.warn("Model value [" + key + "] for template [" + resolvedPath + "] can't be fetched after the provider stopped, leaving it out");
+                continue;
+            }
+            futures.add(task);
+            tasks.add(task);
+        }
+
+        for (int i = 0; i < pending.size(); i++) {
+            final String key = pending.get(i);
+            final Future<?> future = futures.get(i);
+            try {
+                final Object result = future.get(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (result == null) {
+                    model.remove(key);
+                } else {
+                    model.put(key, result);
+                }
+            } catch (ExecutionException e) {
+                model.remove(key);
+                _theLog.warn("Model value [" + key + "] for template [" + resolvedPath + "] failed, leaving it out", e.getCause());
+            } catch (TimeoutException e) {
+                if (tasks.contains(future)) {
+                    cancel(future);
+                }
+                model.remove(key);
+                _theLog.warn("Model value [" + key + "] for template [" + resolvedPath + "] took longer than "
+                        + _timeoutMillis + "ms, leaving it out");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (int j = i; j < pending.size(); j++) {
+                    if (tasks.contains(futures.get(j))) {
+                        cancel(futures.get(j));
+                    }
+                    model.remove(pending.get(j));
+                }
+                _theLog.warn("Interrupted resolving the model for template [" + resolvedPath + "]");
+                return;
+            }
+        }
+    }
+
+    // interrupts a Callable that is running and drops one that is still queued
+    private void cancel(final Future<?> task) {
+        task.cancel(true);
+        _executor.remove((Runnable) task);
+    }
+
+    private Set<String> namesFor(final StringTemplate template) {
+        final String name = template.getName();
+        final Entry entry = _entries.get(name);
+        if (entry != null && entry._chunks == template.getChunks()) {
+            return entry._names;
+        }
+        final Set<String> names = new HashSet<String>();
+        final Set<String> templates = new HashSet<String>();
+        templates.add(name);
+        final boolean known = collect(template, names, templates);
+        _entries.put(name, new Entry(template.getChunks(), known ? names : null));
+        return known ? names : null;
+    }
+
+    /**
+     * Adds the names the template's chunks refer to.
+     *
+     * @return false if the template could refer to names that can't be
+     *         known without rendering it
+     */
+    private static boolean collect(final StringTemplate template, final Set<String> names, final Set<String> templates) {
+        final List<?> chunks = template.getChunks();
+        if (chunks == null) {
+            return true;
+        }
+        for (Object chunk : chunks) {
+            if (!(chunk instanceof ASTExpr)) {
+                continue;
+            }
+            if (!collect(template, ((ASTExpr) chunk).getAST(), names, templates)) {
+                return false;
+            }
+            if (chunk instanceof ConditionalExpr && !collect((ConditionalExpr) chunk, names, templates)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean collect(final ConditionalExpr conditional, final Set<String> names, final Set<String> templates) {
+        if (!collectSubtemplate(conditional.getSubtemplate(), names, templates)
+                || !collectSubtemplate(conditional.getElseSubtemplate(), names, templates)) {
+            return false;
+        }
+        if (ELSE_IF_SUBTEMPLATES == null || ELSE_IF_EXPR == null || ELSE_IF_TEMPLATE == null) {
+            return false;
+        }
+        try {
+            final List<?> clauses = (List<?>) ELSE_IF_SUBTEMPLATES.get(conditional);
+            if (clauses == null) {
+                return true;
+            }
+            for (Object clause : clauses) {
+                if (!collect(conditional.getEnclosingTemplate(), ((ASTExpr) ELSE_IF_EXPR.get(clause)).getAST(), names, templates)
+                        || !collectSubtemplate((StringTemplate) ELSE_IF_TEMPLATE.get(clause), names, templates)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+    }
+
+    private static boolean collectSubtemplate(final StringTemplate subtemplate, final Set<String> names, final Set<String> templates) {
+        return subtemplate == null || collect(subtemplate, names, templates);
+    }
+
+    private static boolean collect(final StringTemplate template, final AST node, final Set<String> names, final Set<String> templates) {
+        for (AST current = node; current != null; current = current.getNextSibling()) {
+            switch (current.getType()) {
+                case ActionEvaluatorTokenTypes.ID:
+                    names.add(current.getText());
+                    break;
+                case ActionEvaluatorTokenTypes.INCLUDE:
+                case ActionEvaluatorTokenTypes.TEMPLATE:
+                    if (!include(template, current.getFirstChild(), names, templates)) {
+                        return false;
+                    }
+                    break;
+                case ActionEvaluatorTokenTypes.ANONYMOUS_TEMPLATE:
+                    if (!collectSubtemplate(((StringTemplateAST) current).getStringTemplate(), names, templates)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (!collect(template, current.getFirstChild(), names, templates)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean include(final StringTemplate enclosing, final AST target, final Set<String> names, final Set<String> templates) {
+        if (target == null || target.getType() == ActionEvaluatorTokenTypes.ANONYMOUS_TEMPLATE) {
+            return true;
+        }
+        if (target.getType() != ActionEvaluatorTokenTypes.ID || enclosing == null) {
+            // $(name)()$ and friends
+            return false;
+        }
+        final String name = target.getText();
+        if (name.startsWith("super.")) {
+            return false;
+        }
+        if (!templates.add(name)) {
+            return true;
+        }
+        final StringTemplateGroup group = enclosing.getGroup();
+        final StringTemplate included;
+        try {
+            included = group == null ? null : group.lookupTemplate(enclosing, name);
+        } catch (IllegalArgumentException e) {
+            // a missing template is an error at render time, and refers to nothing
+            return true;
+        }
+        return included == null || collect(included, names, templates);
+    }
+
+    private static Field declaredField(final String className, final String name) {
+        try {
+            final Field field = Class.forName(className).getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
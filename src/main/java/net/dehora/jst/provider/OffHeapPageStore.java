@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Keeps cached pages outside the Java heap, in direct buffers reserved
+ * up front, so a large output cache adds nothing for the garbage collector
+ * to trace or copy.</p>
+ * <p/>
+ * <p>The memory is cut into fixed size blocks. A page takes as many blocks
+ * as it needs, in no particular order, and hands them back when it is
+ * freed. Which page to give up when the blocks run out is for the caller
+ * to decide.</p>
+ * <p/>
+ * <p>Servlet output streams only take byte arrays, so pages are written
+ * out through a block sized array kept per thread; the pages themselves
+ * are never copied back onto the heap whole.</p>
+ */
+class OffHeapPageStore {
+
+    static final int BLOCK_SIZE = 4096;
+    private static final int BLOCKS_PER_SLAB = 1024;
+
+    private final ByteBuffer[] _slabs;
+    private final int[] _freeBlocks;
+    private int _freeCount;
+    private final ThreadLocal<ByteBuffer[]> _views = new ThreadLocal<ByteBuffer[]>() {
+        @Override
+        protected ByteBuffer[] initialValue() {
+            // each thread moves its own position and limit over the shared memory
+            final ByteBuffer[] views = new ByteBuffer[_slabs.length];
+            for (int i = 0; i < views.length; i++) {
+                views[i] = _slabs[i].duplicate();
+            }
+            return views;
+        }
+    };
+    private final ThreadLocal<byte[]> _chunks = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BLOCK_SIZE];
+        }
+    };
+
+    /**
+     * Reserves the memory, rounded up to a whole number of blocks.
+     */
+    OffHeapPageStore(final long capacityBytes) {
+        final int blocks = (int) Math.min(Integer.MAX_VALUE, (capacityBytes + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        _slabs = new ByteBuffer[(blocks + BLOCKS_PER_SLAB - 1) / BLOCKS_PER_SLAB];
+        for (int i = 0; i < _slabs.length; i++) {
+            final int slabBlocks = Math.min(BLOCKS_PER_SLAB, blocks - i * BLOCKS_PER_SLAB);
+            _slabs[i] = ByteBuffer.allocateDirect(slabBlocks * BLOCK_SIZE);
+        }
+        _freeBlocks = new int[blocks];
+        // handed out from the top, so the first pages go in the first slab
+        for (int i = 0; i < blocks; i++) {
+            _freeBlocks[i] = blocks - 1 - i;
+        }
+        _freeCount = blocks;
+    }
+
+    long getCapacity() {
+        return (long) _freeBlocks.length * BLOCK_SIZE;
+    }
+
+    synchronized long getUsed() {
+        return (long) (_freeBlocks.length - _freeCount) * BLOCK_SIZE;
+    }
+
+    /**
+     * Takes enough blocks for <tt>length</tt> bytes.
+     *
+     * @return the blocks, or null if there aren't enough free
+     */
+    synchronized int[] allocate(final int length) {
+        final int needed = Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        if (needed > _freeCount) {
+            return null;
+        }
+        final int[] blocks = new int[needed];
+        for (int i = 0; i < needed; i++) {
+            blocks[i] = _freeBlocks[--_freeCount];
+        }
+        return blocks;
+    }
+
+    synchronized void free(final int[] blocks) {
+        for (int block : blocks) {
+            _freeBlocks[_freeCount++] = block;
+        }
+    }
+
+    /**
+     * Copies the first <tt>length</tt> bytes into the blocks.
+     */
+    void write(final int[] blocks, final byte[] bytes, final int length) {
+        final ByteBuffer[] views = _views.get();
+        int written = 0;
+        for (int i = 0; written < length; i++) {
+            final int n = Math.min(BLOCK_SIZE, length - written);
+            view(views, blocks[i]).put(bytes, written, n);
+            written += n;
+        }
+    }
+
+    /**
+     * Writes <tt>length</tt> bytes held in the blocks to the stream.
+     */
+    void writeTo(final int[] blocks, final int length, final OutputStream out) throws IOException {
+        final ByteBuffer[] views = _views.get();
+        final byte[] chunk = _chunks.get();
+        int written = 0;
+        for (int i = 0; written < length; i++) {
+            final int n = Math.min(BLOCK_SIZE, length - written);
+            view(views, blocks[i]).get(chunk, 0, n);
+            out.write(chunk, 0, n);
+            written += n;
+        }
+    }
+
+    private static ByteBuffer view(final ByteBuffer[] views, final int block) {
+        final ByteBuffer view = views[block / BLOCKS_PER_SLAB];
+        final int offset = (block % BLOCKS_PER_SLAB) * BLOCK_SIZE;
+        view.limit(offset + BLOCK_SIZE).position(offset);
+        return view;
+    }
+}
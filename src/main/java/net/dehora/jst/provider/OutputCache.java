@@ -0,0 +1,325 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Keeps the encoded bytes of rendered pages, keyed by the resolved
+ * template path and the model the page was rendered with.</p>
+ * <p/>
+ * <p>Models are matched with <tt>equals()</tt>, so only models with value
+ * semantics, such as Maps of Strings, get any hits. Only pages rendered
+ * from a Map, or from no model, are cached: a bean could change after it
+ * was stored in the key, and most beans are only equal to themselves, so
+ * they would fill the cache without ever being hit. Compressed pages are
+ * kept apart from uncompressed ones under their content coding, so each
+ * coding is compressed once. The cache holds at most
+ * <tt>maxEntries</tt> pages and drops the least recently used page to make
+ * room. Pages expire after the ttl set for their template, or the default
+ * ttl; a ttl of zero or less means they live until {@link #clear()}.</p>
+ * <p/>
+ * <p>Given an {@link OffHeapPageStore}, pages are kept there instead of in
+ * byte arrays, and least recently used pages are also dropped when the
+ * store is full. A page that is being written to a response keeps its
+ * memory until the write is done, even if it's dropped meanwhile, so every
+ * {@link #get} must be matched by a {@link #release}.</p>
+ */
+class OutputCache {
+
+    private static final class Key {
+        private final String _resolvedPath;
+        private final Object _model;
+        private final String _contentCoding;
+        private final int _hash;
+
+        Key(final String resolvedPath, final Object model, final String contentCoding) {
+            _resolvedPath = resolvedPath;
+            _model = model;
+            _contentCoding = contentCoding;
+            _hash = 31 * (31 * resolvedPath.hashCode() + (model == null ? 0 : model.hashCode()))
+                    + (contentCoding == null ? 0 : contentCoding.hashCode());
+        }
+
+        @Override
+        public int hashCode() {
+            return _hash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return _hash == other._hash
+                    && _resolvedPath.equals(other._resolvedPath)
+                    && (_contentCoding == null ? other._contentCoding == null : _contentCoding.equals(other._contentCoding))
+                    && (_model == null ? other._model == null : _model.equals(other._model));
+        }
+    }
+
+    static final class Entry {
+        // one of these holds the page
+        private final byte[] _bytes;
+        private final int[] _blocks;
+        private final OffHeapPageStore _store;
+        private final int _length;
+        private final String _etag;
+        private final long _expiresAt;
+        // the cache's own, plus one for each response being written from an off heap page
+        private final AtomicInteger _references = new AtomicInteger(1);
+
+        Entry(final byte[] bytes, final String etag, final long expiresAt) {
+            _bytes = bytes;
+            _blocks = null;
+            _store = null;
+            _length = bytes.length;
+            _etag = etag;
+            _expiresAt = expiresAt;
+        }
+
+        Entry(final OffHeapPageStore store, final int[] blocks, final int length, final String etag, final long expiresAt) {
+            _bytes = null;
+            _blocks = blocks;
+            _store = store;
+            _length = length;
+            _etag = etag;
+            _expiresAt = expiresAt;
+        }
+
+        int getLength() {
+            return _length;
+        }
+
+        /**
+         * Writes the page's bytes to the stream.
+         */
+        void writeTo(final OutputStream out) throws IOException {
+            if (_bytes != null) {
+                out.write(_bytes);
+            } else {
+                _store.writeTo(_blocks, _length, out);
+            }
+        }
+
+        /**
+         * The page's ETag, or null if it was cached without one.
+         */
+        String getETag() {
+            return _etag;
+        }
+
+        private void retain() {
+            if (_blocks != null) {
+                _references.incrementAndGet();
+            }
+        }
+
+        private void release() {
+            if (_blocks != null && _references.decrementAndGet() == 0) {
+                _store.free(_blocks);
+            }
+        }
+    }
+
+    private final int _maxEntries;
+    private final long _defaultTtlMillis;
+    private final Map<String, Long> _ttlMillisByPath;
+    private final Map<Key, Entry> _entries;
+    private final OffHeapPageStore _store;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+
+    OutputCache(final int maxEntries, final long defaultTtlMillis, final Map<String, Long> ttlMillisByPath) {
+        this(maxEntries, defaultTtlMillis, ttlMillisByPath, null);
+    }
+
+    /**
+     * @param store where to keep pages, or null to keep them on the heap
+     */
+    OutputCache(final int maxEntries, final long defaultTtlMillis, final Map<String, Long> ttlMillisByPath,
+                final OffHeapPageStore store) {
+        _maxEntries = maxEntries;
+        _defaultTtlMillis = defaultTtlMillis;
+        _ttlMillisByPath = new HashMap<String, Long>(ttlMillisByPath);
+        _store = store;
+        _entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, OutputCache.Entry> eldest) {
+                if (size() > _maxEntries) {
+                    eldest.getValue().release();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    boolean isEnabled() {
+        return _maxEntries > 0;
+    }
+
+    /**
+     * Returns the cached page, or null if there isn't a live one. The page
+     * must be handed back with {@link #release} once it has been written.
+     *
+     * @param contentCoding the coding the page was compressed with, or null
+     *                      for an uncompressed page
+     */
+    Entry get(final String resolvedPath, final Object model, final String contentCoding) {
+        if (!isCacheable(model)) {
+            return null;
+        }
+        final Key key = new Key(resolvedPath, model, contentCoding);
+        final Entry entry;
+        synchronized (_entries) {
+            entry = _entries.get(key);
+            if (entry != null && entry._expiresAt < System.currentTimeMillis()) {
+                _entries.remove(key);
+                entry.release();
+                _misses.incrementAndGet();
+                return null;
+            }
+            if (entry != null) {
+                entry.retain();
+            }
+        }
+        if (entry == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        _hits.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * True if pages rendered from the model can be cached.
+     */
+    static boolean isCacheable(final Object model) {
+        return model == null || model instanceof Map;
+    }
+
+    /**
+     * Hands back a page returned by {@link #get}.
+     */
+    void release(final Entry entry) {
+        entry.release();
+    }
+
+    /**
+     * Caches the first <tt>length</tt> bytes as a page, along with its ETag
+     * if it has one. The bytes are copied, and so is the model, so later
+     * changes to the caller's Map don't alter the key. Pages rendered from
+     * models other than Maps are not cached.
+     */
+    @SuppressWarnings({"unchecked"})
+    void put(final String resolvedPath, final Object model, final String contentCoding,
+             final byte[] bytes, final int length, final String etag) {
+        if (!isCacheable(model)) {
+            return;
+        }
+        final Object modelKey = model == null ? null : new HashMap<Object, Object>((Map<Object, Object>) model);
+        final long ttlMillis = getTtlMillis(resolvedPath);
+        final long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        final Entry entry;
+        if (_store == null) {
+            final byte[] copy = new byte[length];
+            System.arraycopy(bytes, 0, copy, 0, length);
+            entry = new Entry(copy, etag, expiresAt);
+        } else {
+            final int[] blocks = allocate(length);
+            if (blocks == null) {
+                return;
+            }
+            _store.write(blocks, bytes, length);
+            entry = new Entry(_store, blocks, length, etag, expiresAt);
+        }
+        final Entry replaced;
+        synchronized (_entries) {
+            replaced = _entries.put(new Key(resolvedPath, modelKey, contentCoding), entry);
+        }
+        if (replaced != null) {
+            replaced.release();
+        }
+    }
+
+    /**
+     * Takes blocks for a page from the store, dropping least recently used
+     * pages to make room.
+     *
+     * @return the blocks, or null if the page doesn't fit even then; a page
+     *         bigger than the whole store is turned away without dropping any
+     */
+    private int[] allocate(final int length) {
+        if (length > _store.getCapacity()) {
+            return null;
+        }
+        int[] blocks = _store.allocate(length);
+        if (blocks != null) {
+            return blocks;
+        }
+        synchronized (_entries) {
+            final Iterator<Entry> eldest = _entries.values().iterator();
+            while ((blocks = _store.allocate(length)) == null && eldest.hasNext()) {
+                final Entry evicted = eldest.next();
+                eldest.remove();
+                evicted.release();
+            }
+        }
+        return blocks;
+    }
+
+    void clear() {
+        synchronized (_entries) {
+            for (Entry entry : _entries.values()) {
+                entry.release();
+            }
+            _entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (_entries) {
+            return _entries.size();
+        }
+    }
+
+    long getHits() {
+        return _hits.get();
+    }
+
+    long getMisses() {
+        return _misses.get();
+    }
+
+    private long getTtlMillis(final String resolvedPath) {
+        final Long ttlMillis = _ttlMillisByPath.get(resolvedPath);
+        return ttlMillis == null ? _defaultTtlMillis : ttlMillis;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * <p>Holds a page's text in memory until it is released to the writer
+ * underneath, as buffered output mode does. A {@link FlushMarker} in the
+ * page releases what has been rendered so far and flushes it to the
+ * client.</p>
+ * <p/>
+ * <p>The text is kept in a char array that is reused from page to page,
+ * and released straight from it, so no String of the page is made.</p>
+ */
+class PageBuffer extends Writer {
+
+    private char[] _text;
+    private int _length;
+    private Writer _out;
+
+    PageBuffer(final int capacity) {
+        _text = new char[capacity];
+    }
+
+    /**
+     * Empties the buffer and points it at another writer.
+     */
+    void reset(final Writer out) {
+        _out = out;
+        _length = 0;
+    }
+
+    int capacity() {
+        return _text.length;
+    }
+
+    @Override
+    public void write(final int c) {
+        if (_length == _text.length) {
+            grow(1);
+        }
+        _text[_length++] = (char) c;
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) {
+        if (_length + len > _text.length) {
+            grow(len);
+        }
+        str.getChars(off, off + len, _text, _length);
+        _length += len;
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) {
+        if (_length + len > _text.length) {
+            grow(len);
+        }
+        System.arraycopy(cbuf, off, _text, _length, len);
+        _length += len;
+    }
+
+    /**
+     * Writes the text held so far and flushes the writer underneath.
+     */
+    @Override
+    public void flush() throws IOException {
+        release();
+        _out.flush();
+    }
+
+    /**
+     * Writes the text held so far to the writer underneath, without
+     * flushing it.
+     */
+    void release() throws IOException {
+        if (_length > 0) {
+            _out.write(_text, 0, _length);
+            _length = 0;
+        }
+    }
+
+    /**
+     * Drops the text held so far; the writer underneath is left alone.
+     */
+    @Override
+    public void close() {
+        _length = 0;
+    }
+
+    private void grow(final int needed) {
+        final char[] grown = new char[Math.max(_text.length * 2, _length + needed)];
+        System.arraycopy(_text, 0, grown, 0, _length);
+        _text = grown;
+    }
+}
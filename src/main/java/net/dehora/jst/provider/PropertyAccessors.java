@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import org.antlr.stringtemplate.StringTemplate;
+import org.antlr.stringtemplate.language.ASTExpr;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Finds the getter or field behind a bean property once per class and
+ * keeps it, so reading <tt>$it.name$</tt> doesn't repeat the
+ * <tt>getName()</tt>, <tt>isName()</tt> and <tt>name</tt> lookups that
+ * StringTemplate makes on every read. {@link PropertyExprs} puts every
+ * property read of a template through here.</p>
+ * <p/>
+ * <p>The lookup order is StringTemplate's: public <tt>get</tt> then
+ * <tt>is</tt> methods, then a public field. As StringTemplate does, every
+ * member found has its access checks switched off, so public members of a
+ * class that isn't public, such as a package-private bean, can be read.
+ * Properties that can't be found are remembered too, as a null accessor,
+ * so the caller can hand them back to StringTemplate for its usual
+ * error.</p>
+ * <p/>
+ * <p>Classes are held until the provider goes away, which is at most the
+ * life of the web application that loaded them.</p>
+ */
+class PropertyAccessors {
+
+    abstract static class Accessor {
+        private final Class<?> _type;
+
+        Accessor(final Class<?> type) {
+            _type = type;
+        }
+
+        Class<?> getType() {
+            return _type;
+        }
+
+        abstract Object get(Object bean) throws Exception;
+
+        /**
+         * The message StringTemplate reports when this accessor fails.
+         */
+        abstract String describeFailure(String property);
+    }
+
+    private static final class MethodAccessor extends Accessor {
+        private final Method _method;
+
+        MethodAccessor(final Class<?> type, final Method method) {
+            super(type);
+            _method = method;
+        }
+
+        Object get(final Object bean) throws Exception {
+            return _method.invoke(bean, (Object[]) null);
+        }
+
+        String describeFailure(final String property) {
+            return "Can't get property " + property + " using method get/is" + methodSuffix(property)
+                    + " from " + getType().getName() + " instance";
+        }
+    }
+
+    private static final class FieldAccessor extends Accessor {
+        private final Field _field;
+
+        FieldAccessor(final Class<?> type, final Field field) {
+            super(type);
+            _field = field;
+        }
+
+        Object get(final Object bean) throws Exception {
+            return _field.get(bean);
+        }
+
+        String describeFailure(final String property) {
+            return "Can't access property " + property + " using method get/is" + methodSuffix(property)
+                    + " or direct field access from " + getType().getName() + " instance";
+        }
+    }
+
+    // stands in for "no such property" since ConcurrentHashMap can't hold nulls
+    private static final Accessor MISSING = new Accessor(Object.class) {
+        Object get(final Object bean) {
+            return null;
+        }
+
+        String describeFailure(final String property) {
+            return null;
+        }
+    };
+
+    private final ConcurrentMap<Class<?>, ConcurrentMap<String, Accessor>> _accessors =
+            new ConcurrentHashMap<Class<?>, ConcurrentMap<String, Accessor>>();
+
+    /**
+     * Returns the accessor for a bean's property, or null if the value is
+     * not a bean, or has no such property, and StringTemplate should read
+     * it.
+     */
+    Accessor accessorFor(final Object bean, final Object property) {
+        if (bean == null || !(property instanceof String) || !isBean(bean)) {
+            return null;
+        }
+        return accessorFor(bean.getClass(), (String) property);
+    }
+
+    /**
+     * Returns the accessor for the property, or null if the class has no
+     * such property.
+     */
+    Accessor accessorFor(final Class<?> type, final String property) {
+        ConcurrentMap<String, Accessor> properties = _accessors.get(type);
+        if (properties == null) {
+            final ConcurrentMap<String, Accessor> created = new ConcurrentHashMap<String, Accessor>(8);
+            properties = _accessors.putIfAbsent(type, created);
+            if (properties == null) {
+                properties = created;
+            }
+        }
+        Accessor accessor = properties.get(property);
+        if (accessor == null) {
+            accessor = find(type, property);
+            properties.putIfAbsent(property, accessor);
+        }
+        return accessor == MISSING ? null : accessor;
+    }
+
+    /**
+     * Reads the property as StringTemplate would, reporting a failure to
+     * the template.
+     */
+    static Object read(final Accessor accessor, final StringTemplate self, final Object bean, final String property) {
+        try {
+            return ASTExpr.convertArrayToList(accessor.get(bean));
+        } catch (Exception e) {
+            self.error(accessor.describeFailure(property), e);
+            return null;
+        }
+    }
+
+    /**
+     * Values whose properties StringTemplate reads with getters and fields,
+     * as opposed to attributes, keys or aggregate slots.
+     */
+    static boolean isBean(final Object value) {
+        return !(value instanceof StringTemplate
+                || value instanceof Map
+                || value instanceof StringTemplate.Aggregate);
+    }
+
+    private static Accessor find(final Class<?> type, final String property) {
+        if (property.length() == 0) {
+            return MISSING;
+        }
+        final String suffix = methodSuffix(property);
+        Method method = getMethod(type, "get" + suffix);
+        if (method == null) {
+            method = getMethod(type, "is" + suffix);
+        }
+        if (method != null) {
+            skipAccessChecks(method);
+            return new MethodAccessor(type, method);
+        }
+        try {
+            final Field field = type.getField(property);
+            skipAccessChecks(field);
+            return new FieldAccessor(type, field);
+        } catch (NoSuchFieldException e) {
+            return MISSING;
+        }
+    }
+
+    private static Method getMethod(final Class<?> type, final String name) {
+        try {
+            return type.getMethod(name, (Class[]) null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static void skipAccessChecks(final AccessibleObject member) {
+        try {
+            member.setAccessible(true);
+        } catch (SecurityException e) {
+            // a security manager said no; members of public classes still work, just checked each time
+        }
+    }
+
+    private static String methodSuffix(final String property) {
+        return Character.toUpperCase(property.charAt(0)) + property.substring(1);
+    }
+}
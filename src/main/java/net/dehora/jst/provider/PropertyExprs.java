@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import antlr.collections.AST;
+import org.antlr.stringtemplate.StringTemplate;
+import org.antlr.stringtemplate.language.ASTExpr;
+import org.antlr.stringtemplate.language.ActionEvaluatorTokenTypes;
+import org.antlr.stringtemplate.language.ConditionalExpr;
+import org.antlr.stringtemplate.language.StringTemplateAST;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Swaps the expressions of a parsed template for ones that read bean
+ * properties through {@link PropertyAccessors}, so <tt>$it.name$</tt>
+ * finds its getter once per class wherever it appears: in references,
+ * conditions, template arguments, and anonymous and conditional
+ * sub-templates.</p>
+ * <p/>
+ * <p>Everything else the expressions do is left to StringTemplate, as are
+ * Maps, templates and properties a bean doesn't have. Default values of
+ * formal arguments keep StringTemplate's own expressions. A template is
+ * swapped once, after it is parsed and before it is shared; if
+ * StringTemplate's internals can't be reached it is left as it is.</p>
+ */
+class PropertyExprs {
+
+    static final class Reading extends ASTExpr {
+        private final PropertyAccessors _accessors;
+
+        Reading(final StringTemplate enclosing, final AST tree, final Map<?, ?> options, final PropertyAccessors accessors) {
+            super(enclosing, tree, options);
+            _accessors = accessors;
+        }
+
+        @Override
+        public Object getObjectProperty(final StringTemplate self, final Object o, final Object property) {
+            final PropertyAccessors.Accessor accessor = _accessors.accessorFor(o, property);
+            return accessor == null ? super.getObjectProperty(self, o, property) : PropertyAccessors.read(accessor, self, o, (String) property);
+        }
+    }
+
+    static final class ReadingConditional extends ConditionalExpr {
+        private final PropertyAccessors _accessors;
+
+        ReadingConditional(final StringTemplate enclosing, final AST tree, final PropertyAccessors accessors) {
+            super(enclosing, tree);
+            _accessors = accessors;
+        }
+
+        @Override
+        public Object getObjectProperty(final StringTemplate self, final Object o, final Object property) {
+            final PropertyAccessors.Accessor accessor = _accessors.accessorFor(o, property);
+            return accessor == null ? super.getObjectProperty(self, o, property) : PropertyAccessors.read(accessor, self, o, (String) property);
+        }
+    }
+
+    // ASTExpr and ConditionalExpr keep these to themselves
+    private static final Field OPTIONS = declaredField(ASTExpr.class.getName(), "options");
+    private static final Field ELSE_IF_SUBTEMPLATES = declaredField(ConditionalExpr.class.getName(), "elseIfSubtemplates");
+    private static final Field ELSE_IF_TEMPLATE = declaredField(ConditionalExpr.class.getName() + "$ElseIfClauseData", "st");
+
+    private PropertyExprs() {
+    }
+
+    /**
+     * Swaps the template's expressions, and those of its sub-templates, in
+     * place. Must be called before the template is rendered.
+     */
+    @SuppressWarnings({"unchecked"})
+    static void install(final StringTemplate template, final PropertyAccessors accessors) {
+        if (template == null || OPTIONS == null || ELSE_IF_SUBTEMPLATES == null || ELSE_IF_TEMPLATE == null) {
+            return;
+        }
+        final List<Object> chunks = (List<Object>) template.getChunks();
+        if (chunks == null) {
+            return;
+        }
+        try {
+            for (int i = 0; i < chunks.size(); i++) {
+                final Object chunk = chunks.get(i);
+                if (chunk.getClass() == ConditionalExpr.class) {
+                    chunks.set(i, swap((ConditionalExpr) chunk, accessors));
+                } else if (chunk.getClass() == ASTExpr.class) {
+                    final ASTExpr expr = (ASTExpr) chunk;
+                    final Reading reading = new Reading(expr.getEnclosingTemplate(), expr.getAST(), (Map<?, ?>) OPTIONS.get(expr), accessors);
+                    reading.setIndentation(expr.getIndentation());
+                    installAnonymous(expr.getAST(), accessors);
+                    chunks.set(i, reading);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            // setAccessible worked when the fields were found, so this can't happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ReadingConditional swap(final ConditionalExpr conditional, final PropertyAccessors accessors) throws IllegalAccessException {
+        final ReadingConditional reading = new ReadingConditional(conditional.getEnclosingTemplate(), conditional.getAST(), accessors);
+        reading.setIndentation(conditional.getIndentation());
+        OPTIONS.set(reading, OPTIONS.get(conditional));
+        reading.setSubtemplate(conditional.getSubtemplate());
+        reading.setElseSubtemplate(conditional.getElseSubtemplate());
+        final List<?> clauses = (List<?>) ELSE_IF_SUBTEMPLATES.get(conditional);
+        ELSE_IF_SUBTEMPLATES.set(reading, clauses);
+        install(conditional.getSubtemplate(), accessors);
+        install(conditional.getElseSubtemplate(), accessors);
+        if (clauses != null) {
+            for (Object clause : clauses) {
+                install((StringTemplate) ELSE_IF_TEMPLATE.get(clause), accessors);
+            }
+        }
+        installAnonymous(conditional.getAST(), accessors);
+        return reading;
+    }
+
+    private static void installAnonymous(final AST node, final PropertyAccessors accessors) {
+        for (AST current = node; current != null; current = current.getNextSibling()) {
+            if (current.getType() == ActionEvaluatorTokenTypes.ANONYMOUS_TEMPLATE && current instanceof StringTemplateAST) {
+                install(((StringTemplateAST) current).getStringTemplate(), accessors);
+            }
+            installAnonymous(current.getFirstChild(), accessors);
+        }
+    }
+
+    private static Field declaredField(final String className, final String name) {
+        try {
+            final Field field = Class.forName(className).getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
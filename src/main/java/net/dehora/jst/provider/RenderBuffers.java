@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Writer;
+
+/**
+ * <p>Keeps the buffers and writers a render needs, one set per thread, so
+ * that in steady state a page allocates little beyond its model and the
+ * text of its attributes.</p>
+ * <p/>
+ * <p>Like the writers of {@link ResponseEncoding}, what's handed out here
+ * must be used on the thread that asked for it, and be done with before
+ * that thread asks again. A buffer that a large page grew past
+ * <tt>maxRetained</tt> is swapped for a new one the next time it's asked
+ * for, so one large page doesn't pin its size on every thread.</p>
+ */
+class RenderBuffers {
+
+    /**
+     * A page's bytes, kept for the output cache or an ETag, that can be
+     * read without copying them.
+     */
+    static final class PageBytes extends ByteArrayOutputStream {
+
+        PageBytes(final int capacity) {
+            super(capacity);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+
+    private static final class Buffers {
+        private PageBuffer _page;
+        private PageBytes _bytes;
+        private FlushingWriter _templateWriter;
+        private EncodedLiteralWriter _literalWriter;
+    }
+
+    private final int _capacity;
+    private final int _maxRetained;
+    private final ThreadLocal<Buffers> _buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    /**
+     * @param capacity    the starting size of the page buffers, in chars or bytes
+     * @param maxRetained the largest buffer kept for the next page
+     */
+    RenderBuffers(final int capacity, final int maxRetained) {
+        _capacity = capacity;
+        _maxRetained = Math.max(capacity, maxRetained);
+    }
+
+    /**
+     * Returns this thread's page buffer, empty and releasing to the given
+     * writer.
+     */
+    PageBuffer getPageBuffer(final Writer out) {
+        final Buffers buffers = _buffers.get();
+        if (buffers._page == null || buffers._page.capacity() > _maxRetained) {
+            buffers._page = new PageBuffer(_capacity);
+        }
+        buffers._page.reset(out);
+        return buffers._page;
+    }
+
+    /**
+     * Returns this thread's page bytes, empty.
+     */
+    PageBytes getPageBytes() {
+        final Buffers buffers = _buffers.get();
+        if (buffers._bytes == null || buffers._bytes.capacity() > _maxRetained) {
+            buffers._bytes = new PageBytes(_capacity);
+        }
+        buffers._bytes.reset();
+        return buffers._bytes;
+    }
+
+    /**
+     * Returns this thread's template writer, reset to write to the given
+     * writer.
+     */
+    FlushingWriter getTemplateWriter(final Writer out) {
+        final Buffers buffers = _buffers.get();
+        if (buffers._templateWriter == null) {
+            buffers._templateWriter = new FlushingWriter(out);
+        } else {
+            buffers._templateWriter.reset(out);
+        }
+        return buffers._templateWriter;
+    }
+
+    /**
+     * Returns this thread's pre-encoded literal writer, reset to write to
+     * the given writer.
+     */
+    EncodedLiteralWriter getEncodedLiteralWriter(final ResponseEncoding.EncodingWriter out) {
+        final Buffers buffers = _buffers.get();
+        if (buffers._literalWriter == null) {
+            buffers._literalWriter = new EncodedLiteralWriter(out);
+        } else {
+            buffers._literalWriter.reset(out);
+        }
+        return buffers._literalWriter;
+    }
+}
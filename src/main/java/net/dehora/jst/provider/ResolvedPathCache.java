@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Remembers the outcome of resolving a view path against the servlet
+ * context, so repeat lookups don't go back to the container.</p>
+ * <p/>
+ * <p>Both found and not-found results are kept. The cache holds at most
+ * <tt>maxEntries</tt> paths; when full an arbitrary entry is dropped to make
+ * room. Found entries optionally expire after <tt>ttlMillis</tt>; a ttl of
+ * zero or less means they live until {@link #clear()} is called. Misses
+ * expire after their own, usually shorter, <tt>missTtlMillis</tt>, so a
+ * template added later is found without a clear; a miss ttl of zero or less
+ * means misses aren't kept.</p>
+ */
+class ResolvedPathCache {
+
+    static final class Entry {
+        private final String _resolvedPath;
+        private final long _expiresAt;
+
+        Entry(final String resolvedPath, final long expiresAt) {
+            _resolvedPath = resolvedPath;
+            _expiresAt = expiresAt;
+        }
+
+        /**
+         * The resolved template path, or null if the template wasn't found.
+         */
+        String getResolvedPath() {
+            return _resolvedPath;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> _entries;
+    private final int _maxEntries;
+    private final long _ttlMillis;
+    private final long _missTtlMillis;
+
+    ResolvedPathCache(final int maxEntries, final long ttlMillis, final long missTtlMillis) {
+        _maxEntries = maxEntries;
+        _ttlMillis = ttlMillis;
+        _missTtlMillis = missTtlMillis;
+        _entries = new ConcurrentHashMap<String, Entry>(Math.min(Math.max(maxEntries, 16), 1024));
+    }
+
+    boolean isEnabled() {
+        return _maxEntries > 0;
+    }
+
+    /**
+     * Returns the live entry for the path, or null if the path hasn't been
+     * resolved yet or its entry has expired.
+     */
+    Entry get(final String path) {
+        if (!isEnabled()) {
+            return null;
+        }
+        final Entry entry = _entries.get(path);
+        if (entry == null) {
+            return null;
+        }
+        if (entry._expiresAt != Long.MAX_VALUE && entry._expiresAt < System.currentTimeMillis()) {
+            _entries.remove(path, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * @param resolvedPath the resolved template path, or null for a miss
+     */
+    void put(final String path, final String resolvedPath) {
+        if (!isEnabled() || (resolvedPath == null && _missTtlMillis <= 0)) {
+            return;
+        }
+        if (_entries.size() >= _maxEntries && !_entries.containsKey(path)) {
+            evictOne();
+        }
+        final long ttlMillis = resolvedPath == null ? _missTtlMillis : _ttlMillis;
+        final long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : Long.MAX_VALUE;
+        _entries.put(path, new Entry(resolvedPath, expiresAt));
+    }
+
+    void clear() {
+        _entries.clear();
+    }
+
+    int size() {
+        return _entries.size();
+    }
+
+    private void evictOne() {
+        final Iterator<String> keys = _entries.keySet().iterator();
+        if (keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+}
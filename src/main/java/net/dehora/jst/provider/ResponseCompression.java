@@ -0,0 +1,278 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Compresses rendered pages with gzip or deflate, as picked from the
+ * request's Accept-Encoding header.</p>
+ * <p/>
+ * <p>Unlike <tt>GZIPOutputStream</tt>, which allocates a Deflater and its
+ * native memory for every stream, the streams handed out here keep one
+ * Deflater and one buffer per thread per coding and reset them between
+ * pages. A stream must be finished on the thread that asked for it, before
+ * that thread asks for another.</p>
+ * <p/>
+ * <p>Container threads outlive the web application, so the Deflaters are
+ * also tracked, weakly, and the native memory of those still in use is
+ * freed by {@link #stop()} rather than left to the garbage collector. A
+ * Deflater whose thread has gone is collected, and freed, as usual.</p>
+ */
+class ResponseCompression {
+
+    /**
+     * The content codings the provider can produce.
+     */
+    enum Coding {
+        GZIP("gzip"),
+        /**
+         * HTTP's "deflate", which is the zlib format rather than raw deflate.
+         */
+        DEFLATE("deflate");
+
+        private final String _name;
+
+        Coding(final String name) {
+            _name = name;
+        }
+
+        /**
+         * The coding's name as sent in Content-Encoding.
+         */
+        String getName() {
+            return _name;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] GZIP_HEADER = {
+            (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final int _level;
+    private final Map<Deflater, Boolean> _deflaters = Collections.synchronizedMap(new WeakHashMap<Deflater, Boolean>());
+    private final ThreadLocal<CompressingOutputStream> _gzipStreams = new ThreadLocal<CompressingOutputStream>() {
+        @Override
+        protected CompressingOutputStream initialValue() {
+            return new CompressingOutputStream(newDeflater(true), true);
+        }
+    };
+    private final ThreadLocal<CompressingOutputStream> _deflateStreams = new ThreadLocal<CompressingOutputStream>() {
+        @Override
+        protected CompressingOutputStream initialValue() {
+            return new CompressingOutputStream(newDeflater(false), false);
+        }
+    };
+
+    /**
+     * @param level a Deflater compression level; 0 turns compression off
+     */
+    ResponseCompression(final int level) {
+        _level = level;
+    }
+
+    boolean isEnabled() {
+        return _level != 0;
+    }
+
+    /**
+     * Frees every Deflater handed out. Streams must not be used afterwards.
+     */
+    void stop() {
+        final List<Deflater> deflaters;
+        synchronized (_deflaters) {
+            deflaters = new ArrayList<Deflater>(_deflaters.keySet());
+            _deflaters.clear();
+        }
+        for (Deflater deflater : deflaters) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Picks the coding the client prefers from an Accept-Encoding header,
+     * gzip on a tie, or null if it accepts neither or sent no header.
+     */
+    Coding negotiate(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzip = -1f;
+        float deflate = -1f;
+        float any = -1f;
+        for (String element : acceptEncoding.split(",")) {
+            final String[] parts = element.split(";");
+            final String coding = parts[0].trim().toLowerCase(Locale.ENGLISH);
+            float q = 1f;
+            for (int i = 1; i < parts.length; i++) {
+                final String param = parts[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0f;
+                    }
+                }
+            }
+            if ("gzip".equals(coding) || "x-gzip".equals(coding)) {
+                gzip = Math.max(gzip, q);
+            } else if ("deflate".equals(coding)) {
+                deflate = Math.max(deflate, q);
+            } else if ("*".equals(coding)) {
+                any = q;
+            }
+        }
+        gzip = gzip < 0f ? any : gzip;
+        deflate = deflate < 0f ? any : deflate;
+        if (gzip > 0f && gzip >= deflate) {
+            return Coding.GZIP;
+        }
+        if (deflate > 0f) {
+            return Coding.DEFLATE;
+        }
+        return null;
+    }
+
+    /**
+     * Returns this thread's stream for the coding, reset to write to the
+     * given stream.
+     */
+    CompressingOutputStream getStream(final OutputStream out, final Coding coding) {
+        final CompressingOutputStream stream = coding == Coding.GZIP ? _gzipStreams.get() : _deflateStreams.get();
+        stream.reset(out);
+        return stream;
+    }
+
+    private Deflater newDeflater(final boolean nowrap) {
+        final Deflater deflater = new Deflater(_level, nowrap);
+        _deflaters.put(deflater, Boolean.TRUE);
+        return deflater;
+    }
+
+    static final class CompressingOutputStream extends OutputStream {
+
+        private final Deflater _deflater;
+        private final boolean _gzip;
+        private final CRC32 _crc = new CRC32();
+        private final byte[] _buffer = new byte[BUFFER_SIZE];
+        private final byte[] _single = new byte[1];
+        private OutputStream _out;
+        private boolean _started;
+
+        CompressingOutputStream(final Deflater deflater, final boolean gzip) {
+            _deflater = deflater;
+            _gzip = gzip;
+        }
+
+        void reset(final OutputStream out) {
+            _out = out;
+            _deflater.reset();
+            _crc.reset();
+            _started = false;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            _single[0] = (byte) b;
+            write(_single, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            start();
+            if (_gzip) {
+                _crc.update(b, off, len);
+            }
+            _deflater.setInput(b, off, len);
+            while (!_deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        /**
+         * Flushes what the Deflater has produced so far. Input it is still
+         * holding on to goes out with later output or {@link #finish()}.
+         */
+        @Override
+        public void flush() throws IOException {
+            _out.flush();
+        }
+
+        /**
+         * Writes the rest of the compressed page and the gzip trailer. The
+         * response stream is neither flushed nor closed.
+         */
+        void finish() throws IOException {
+            start();
+            _deflater.finish();
+            while (!_deflater.finished()) {
+                deflate();
+            }
+            if (_gzip) {
+                final byte[] trailer = new byte[8];
+                putIntLE(trailer, 0, (int) _crc.getValue());
+                putIntLE(trailer, 4, (int) _deflater.getBytesRead());
+                _out.write(trailer);
+            }
+            _out = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (_out != null) {
+                finish();
+            }
+        }
+
+        private void start() throws IOException {
+            if (!_started) {
+                _started = true;
+                if (_gzip) {
+                    _out.write(GZIP_HEADER);
+                }
+            }
+        }
+
+        private void deflate() throws IOException {
+            final int n = _deflater.deflate(_buffer, 0, _buffer.length);
+            if (n > 0) {
+                _out.write(_buffer, 0, n);
+            }
+        }
+
+        private static void putIntLE(final byte[] bytes, final int off, final int value) {
+            bytes[off] = (byte) value;
+            bytes[off + 1] = (byte) (value >>> 8);
+            bytes[off + 2] = (byte) (value >>> 16);
+            bytes[off + 3] = (byte) (value >>> 24);
+        }
+    }
+}
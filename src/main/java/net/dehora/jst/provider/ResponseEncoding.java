@@ -0,0 +1,268 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * <p>Encodes rendered templates onto the response in a fixed charset.</p>
+ * <p/>
+ * <p>Unlike an <tt>OutputStreamWriter</tt>, which creates an encoder and a
+ * byte buffer each time, the writers handed out here share one encoder,
+ * one byte buffer and one char buffer per thread. A writer must be used
+ * and finished on the thread that asked for it, before that thread asks
+ * for another.</p>
+ * <p/>
+ * <p>StringTemplate writes most text a char at a time. Those chars are
+ * gathered in the char buffer and encoded a buffer at a time.</p>
+ * <p/>
+ * <p>Encoded bytes are held until the buffer fills or the writer is closed,
+ * so a page that fits in the buffer reaches the response in a single write.
+ * The {@link Flush} policy decides whether the response stream itself is
+ * flushed as well.</p>
+ */
+class ResponseEncoding {
+
+    /**
+     * When the writer flushes the response stream, as opposed to just
+     * writing to it.
+     */
+    enum Flush {
+        /**
+         * Never; the container commits the response when the request ends,
+         * and can set the Content-Length if the page fit in its buffer.
+         */
+        CONTAINER,
+        /**
+         * Once, when the writer is closed.
+         */
+        END,
+        /**
+         * Every time the buffer fills, and when the writer is closed.
+         */
+        THRESHOLD
+    }
+
+    private final Charset _charset;
+    private final int _bufferSize;
+    private final Flush _flush;
+    private final ThreadLocal<EncodingWriter> _writers = new ThreadLocal<EncodingWriter>() {
+        @Override
+        protected EncodingWriter initialValue() {
+            return new EncodingWriter(_charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE),
+                    ByteBuffer.allocate(_bufferSize), CharBuffer.allocate(_bufferSize), _flush);
+        }
+    };
+
+    ResponseEncoding(final Charset charset, final int bufferSize, final Flush flush) {
+        _charset = charset;
+        _bufferSize = bufferSize;
+        _flush = flush;
+    }
+
+    Charset getCharset() {
+        return _charset;
+    }
+
+    /**
+     * Returns this thread's writer, reset to write to the given stream.
+     */
+    EncodingWriter getWriter(final OutputStream out) {
+        final EncodingWriter writer = _writers.get();
+        writer.reset(out);
+        return writer;
+    }
+
+    /**
+     * Flushes the response if the flush policy asks for it at the end of a
+     * page.
+     */
+    void endPage(final OutputStream out) throws IOException {
+        if (_flush != Flush.CONTAINER) {
+            out.flush();
+        }
+    }
+
+    static final class EncodingWriter extends Writer {
+
+        private final CharsetEncoder _encoder;
+        private final ByteBuffer _bytes;
+        private final Flush _flush;
+        // single chars not yet given to the encoder
+        private final CharBuffer _chars;
+        private OutputStream _out;
+        // the high half of a surrogate pair split across two writes
+        private char _pendingHighSurrogate;
+        private boolean _hasPendingHighSurrogate;
+
+        EncodingWriter(final CharsetEncoder encoder, final ByteBuffer bytes, final CharBuffer chars, final Flush flush) {
+            _encoder = encoder;
+            _bytes = bytes;
+            _chars = chars;
+            _flush = flush;
+        }
+
+        void reset(final OutputStream out) {
+            _out = out;
+            _encoder.reset();
+            _bytes.clear();
+            _chars.clear();
+            _hasPendingHighSurrogate = false;
+        }
+
+        @Override
+        public void write(final int c) throws IOException {
+            if (!_chars.hasRemaining()) {
+                encodeChars();
+            }
+            _chars.put((char) c);
+        }
+
+        @Override
+        public void write(final String str, final int off, final int len) throws IOException {
+            encodeChars();
+            encode(CharBuffer.wrap(str, off, off + len));
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException {
+            encodeChars();
+            encode(CharBuffer.wrap(cbuf, off, len));
+        }
+
+        /**
+         * Writes bytes that are already in this writer's charset, in order
+         * with the characters written before them.
+         */
+        void writeEncoded(final byte[] bytes) throws IOException {
+            encodeChars();
+            if (_hasPendingHighSurrogate) {
+                // a lone high surrogate is malformed input, same as the encoder would treat it
+                _hasPendingHighSurrogate = false;
+                writeEncoded(_encoder.replacement());
+            }
+            if (bytes.length > _bytes.remaining()) {
+                drainAtThreshold();
+                if (bytes.length > _bytes.remaining()) {
+                    _out.write(bytes);
+                    return;
+                }
+            }
+            _bytes.put(bytes);
+        }
+
+        /**
+         * Writes any buffered bytes and flushes the response stream.
+         */
+        @Override
+        public void flush() throws IOException {
+            encodeChars();
+            drain();
+            _out.flush();
+        }
+
+        /**
+         * Finishes encoding and writes out the buffer, flushing the response
+         * stream unless the flush policy leaves that to the container. The
+         * response stream is left open since the container owns it.
+         */
+        @Override
+        public void close() throws IOException {
+            encodeChars();
+            if (_hasPendingHighSurrogate) {
+                _hasPendingHighSurrogate = false;
+                encode(CharBuffer.wrap(new char[]{_pendingHighSurrogate}), true);
+            } else {
+                encode(CharBuffer.allocate(0), true);
+            }
+            CoderResult result;
+            while ((result = _encoder.flush(_bytes)).isOverflow()) {
+                drain();
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            drain();
+            if (_flush != Flush.CONTAINER) {
+                _out.flush();
+            }
+            _out = null;
+        }
+
+        private void encodeChars() throws IOException {
+            if (_chars.position() > 0) {
+                _chars.flip();
+                encode(_chars);
+                _chars.clear();
+            }
+        }
+
+        private void encode(final CharBuffer chars) throws IOException {
+            if (_hasPendingHighSurrogate && chars.hasRemaining()) {
+                _hasPendingHighSurrogate = false;
+                final CharBuffer joined = CharBuffer.allocate(chars.remaining() + 1);
+                joined.put(_pendingHighSurrogate).put(chars).flip();
+                encode(joined, false);
+            } else {
+                encode(chars, false);
+            }
+        }
+
+        private void encode(final CharBuffer chars, final boolean endOfInput) throws IOException {
+            while (true) {
+                final CoderResult result = _encoder.encode(chars, _bytes, endOfInput);
+                if (result.isOverflow()) {
+                    drainAtThreshold();
+                } else if (result.isUnderflow()) {
+                    if (chars.remaining() == 1) {
+                        // the encoder wants to see the low surrogate first
+                        _pendingHighSurrogate = chars.get();
+                        _hasPendingHighSurrogate = true;
+                    }
+                    return;
+                } else {
+                    result.throwException();
+                }
+            }
+        }
+
+        private void drainAtThreshold() throws IOException {
+            drain();
+            if (_flush == Flush.THRESHOLD) {
+                _out.flush();
+            }
+        }
+
+        private void drain() throws IOException {
+            if (_bytes.position() > 0) {
+                _out.write(_bytes.array(), 0, _bytes.position());
+                _bytes.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import org.apache.log4j.Logger;
+
+import javax.servlet.ServletContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Set;
+
+/**
+ * <p>Reads templates from the web application through the servlet
+ * context. This is the default {@link TemplateSource}.</p>
+ */
+class ServletContextTemplateSource implements TemplateSource {
+
+    private static final Logger _theLog = Logger.getLogger(ServletContextTemplateSource.class);
+
+    private final ServletContext _context;
+
+    ServletContextTemplateSource(final ServletContext context) {
+        _context = context;
+    }
+
+    public boolean exists(final String path) {
+        try {
+            return _context.getResource(path) != null;
+        } catch (MalformedURLException e) {
+            _theLog.warn("Malformed URL finding [" + path + "] in the servlet context", e);
+            return false;
+        }
+    }
+
+    public InputStream open(final String path) throws IOException {
+        final URL target = _context.getResource(path);
+        return target == null ? null : target.openStream();
+    }
+
+    @SuppressWarnings({"unchecked"})
+    public Set<String> list(final String directory) {
+        return _context.getResourcePaths(directory);
+    }
+}
@@ -20,17 +20,37 @@ package net.dehora.jst.provider;
 import com.sun.jersey.spi.template.TemplateProcessor;
 import org.antlr.stringtemplate.StringTemplate;
 import org.antlr.stringtemplate.StringTemplateGroup;
+import org.antlr.stringtemplate.StringTemplateWriter;
 import org.antlr.stringtemplate.language.DefaultTemplateLexer;
 import org.apache.log4j.Logger;
 
 import javax.ws.rs.core.Context;
 import javax.ws.rs.ext.Provider;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.*;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * <p>StringTemplate Provider for Jersey</p>
@@ -56,6 +76,174 @@ import java.util.Map;
  * will be set directly into the template. The code assumes the Map is
  * a <tt>Map<String,Object></tt>.</p>
  * <p/>
+ * <p>The model Map is copied before it is given to the template, so the
+ * template can't change the caller's Map. Setting the context param
+ * 'stringtemplate.model.copy' to <tt>false</tt> hands the Map over as is,
+ * saving the copy on every render. Only do that when the Map is left alone
+ * while the page renders. Templates with default argument values write
+ * those into the Map, so the Map must also be mutable.</p>
+ * <p/>
+ * <p>Model values that are still being fetched can be put in the Map as a
+ * <tt>java.util.concurrent.Future</tt>, or as a <tt>Callable</tt> that
+ * fetches them. Setting the context param
+ * 'stringtemplate.model.resolve.threads' to N (default 0, off) waits for
+ * the Futures and runs the Callables on N threads, all at once, and puts
+ * their results in the Map before rendering, so a page is as slow as its
+ * slowest value instead of the sum of them. Only values the template, or
+ * a template it includes, refers to are fetched. Values that fail, or take
+ * longer than 'stringtemplate.model.resolve.timeout' seconds (default 10),
+ * are logged and left out, and the request never waits longer than that.
+ * Callables only run on the N threads, waiting for one when all are busy;
+ * those that time out are cancelled, running or waiting, Futures are not.
+ * Pages rendered from such models skip the output cache.</p>
+ * <p/>
+ * <p>By default the template is rendered into a buffer, one kept per
+ * thread and reused from page to page, and then written to the response.
+ * Setting the context param 'stringtemplate.output.mode'
+ * to <tt>streaming</tt> renders the template straight into the response
+ * stream instead, which avoids holding the whole page in memory. The
+ * default, <tt>buffered</tt>, keeps partially rendered pages off the
+ * wire when a template fails. <tt>encoded</tt> streams as well, and also
+ * encodes the literal text of each template once, on first use, so only
+ * the output of expressions goes through the charset encoder on each
+ * render.</p>
+ * <p/>
+ * <p>Resolved template paths, including misses, are cached. The context
+ * param 'stringtemplate.resolve.cache.size' bounds the number of cached
+ * paths (default 512, 0 turns caching off) and
+ * 'stringtemplate.resolve.cache.ttl' sets a lifetime in seconds (default 0,
+ * entries never expire). Misses live for
+ * 'stringtemplate.resolve.cache.miss.ttl' seconds (default 5, 0 doesn't
+ * keep them), so templates added later are found. Call
+ * {@link #clearResolvedPathCache()} after templates are redeployed.</p>
+ * <p/>
+ * <p>Templates can also be kept in StringTemplate group files, ending in
+ * ".stg", anywhere under the template path. These are parsed once when the
+ * provider starts and page templates call them by name, as in
+ * <tt>$header(title=it.title)$</tt>, from memory. Group files use the same
+ * <tt>$...$</tt> delimiters as ".st" files.</p>
+ * <p/>
+ * <p>Templates are read through the servlet context unless the context
+ * param 'stringtemplate.template.source' says otherwise:
+ * <tt>classpath</tt> reads them as classpath resources, so
+ * <tt>/templates/home.st</tt> is <tt>templates/home.st</tt> on the
+ * classpath; <tt>bundle</tt> reads them from the jar named by
+ * 'stringtemplate.template.bundle', either a path in the webapp such as
+ * <tt>/WEB-INF/templates.jar</tt> or a file, whose directory is indexed
+ * in memory at startup; anything else is taken as the class name of a
+ * {@link TemplateSource}. A source that is {@link java.io.Closeable}, as
+ * the bundle is, is closed when the provider is destroyed. Precompiling and group files need a source that
+ * can list directories, which the classpath can't, and reloading needs the
+ * servlet context.</p>
+ * <p/>
+ * <p>Setting the context param 'stringtemplate.precompile' to <tt>true</tt>
+ * parses every ".st" file under the template path when the provider starts,
+ * instead of on the first request for each one. Adding
+ * 'stringtemplate.precompile.warmup' set to <tt>true</tt> also renders each
+ * template once with an empty model.</p>
+ * <p/>
+ * <p>Templates are read and pages are written as UTF-8 unless the context
+ * params 'stringtemplate.input.encoding' and 'stringtemplate.output.encoding'
+ * name another charset. The output charset is put on the response's
+ * Content-Type; a resource that declares a charset in its media type must
+ * declare the output charset.</p>
+ * <p/>
+ * <p>Encoded output is buffered before it is written to the response. The
+ * context param 'stringtemplate.output.buffer.size' sets the buffer size in
+ * bytes (default 8192) and 'stringtemplate.output.flush' says when the
+ * response is flushed: <tt>container</tt> (the default) leaves it to the
+ * container, which can then set a Content-Length for pages that fit in its
+ * buffer; <tt>end</tt> flushes once the page is written; <tt>threshold</tt>
+ * also flushes every time the buffer fills, which suits streaming mode.</p>
+ * <p/>
+ * <p>Setting the context param 'stringtemplate.output.flush.marker' to
+ * <tt>true</tt> lets a page send what it has rendered so far, usually its
+ * <tt>&lt;head&gt;</tt>, with <tt>$flush()$</tt>, so the browser can fetch
+ * stylesheets and scripts while the body renders. This works in every
+ * output mode; in buffered mode a template that fails after the marker
+ * leaves the flushed part of the page on the wire. The marker does nothing
+ * when the page is held back whole for the output cache or an ETag, or
+ * inside a cached fragment, and compressed output only sends what the
+ * compressor has let go of. The name <tt>flush</tt> is then taken, and
+ * hides any template of that name.</p>
+ * <p/>
+ * <p>Rendered pages can be cached by setting the context param
+ * 'stringtemplate.output.cache.size' to the number of pages to keep
+ * (default 0, off). A page is reused when the same template is rendered
+ * with an equal model, so this only pays off for models with value
+ * semantics such as the Maps built in {@link net.dehora.jst.resource.Pages}.
+ * Only pages rendered from a Map, or from no model, are cached.
+ * 'stringtemplate.output.cache.ttl' sets how many seconds pages live
+ * (default 0, until evicted) and 'stringtemplate.output.cache.ttls'
+ * overrides that per template, e.g. <tt>/home=60, /news/latest=5</tt>.</p>
+ * <p/>
+ * <p>Cached pages are kept on the heap unless the context param
+ * 'stringtemplate.output.cache.memory' gives a number of megabytes to keep
+ * them in outside the heap, where they cost the garbage collector nothing.
+ * That memory is reserved when the provider starts, counts against the
+ * JVM's <tt>-XX:MaxDirectMemorySize</tt>, and is used in 4K blocks; when it
+ * runs out the least recently used pages are dropped.</p>
+ * <p/>
+ * <p>Setting the context param 'stringtemplate.output.compression' to
+ * <tt>true</tt> gzips or deflates pages for clients that say they accept
+ * it, so no separate compression filter is needed.
+ * 'stringtemplate.output.compression.level' sets the Deflater level, 1 to
+ * 9 (default 6). With the output cache on, the compressed bytes are what
+ * gets cached. Compressed output can't be flushed part way through a page,
+ * so <tt>threshold</tt> flushing only sends what the compressor has let go
+ * of. The compressors' native memory is freed by
+ * {@link StringTemplateProviderListener}.</p>
+ * <p/>
+ * <p>Setting the context param 'stringtemplate.etag' to <tt>true</tt> sends
+ * a strong ETag, an MD5 of the page bytes, with GET and HEAD responses,
+ * and answers a matching If-None-Match with a 304 and no body. Tagged
+ * pages are rendered into memory first, even in streaming mode. Pages
+ * served from the output cache keep their ETag, so a repeat visitor's 304
+ * costs neither a render nor a hash.</p>
+ * <p/>
+ * <p>Sub-templates that depend on a few slow-changing attributes, such as
+ * headers, navigation and footers, can have their rendered text cached and
+ * shared by every page that includes them. The context param
+ * 'stringtemplate.fragment.cache' declares them by name, each with the
+ * attributes its text depends on and an optional ttl in seconds, e.g.
+ * <tt>header(title,user)=60, footer=300</tt>. Attribute values are matched
+ * with <tt>equals()</tt>, and a fragment is only cached when they are all
+ * Strings, Numbers or Booleans. A missing fragment is rendered by one
+ * request while others wait for it. 'stringtemplate.fragment.cache.size'
+ * bounds the number of cached fragments (default 1024).</p>
+ * <p/>
+ * <p>Setting the context param 'stringtemplate.compile.threshold' to N
+ * compiles a template once it has been rendered N times (default 0, never).
+ * A compiled template writes its literal text and plain attribute
+ * references directly, and hands everything else to the interpreter.</p>
+ * <p/>
+ * <p>Bean properties, as in <tt>$it.title$</tt>, are read with the getter
+ * or field found the first time the bean's class was seen, whether the
+ * template is compiled or not.</p>
+ * <p/>
+ * <p>Setting the context param 'stringtemplate.metrics' to <tt>true</tt>
+ * keeps per-template render counts, latencies, sizes and errors and
+ * registers them with the platform MBean server as
+ * <tt>net.dehora.jst:type=TemplateMetrics,context=&lt;context path&gt;</tt>.
+ * Other {@link TemplateRenderListener}s can be named, comma separated, in
+ * 'stringtemplate.render.listeners'; they need a public no-argument
+ * constructor. With neither set no timing is done. Declare a
+ * {@link StringTemplateProviderListener} in web.xml so the MBean is
+ * unregistered when the webapp is undeployed.</p>
+ * <p/>
+ * <p>Setting the context param 'stringtemplate.reload' to <tt>true</tt>
+ * watches the template files of an exploded webapp from a background
+ * thread and re-parses the ones that change, every
+ * 'stringtemplate.reload.interval' seconds (default 2). Changed templates
+ * are swapped in whole; request threads never check for staleness. The
+ * watcher thread is stopped by {@link StringTemplateProviderListener}.</p>
+ * <p/>
+ * <p>"Template not found" is logged at most once per path every 60 seconds;
+ * the context param 'stringtemplate.log.throttle' changes the interval
+ * (0 logs every miss). To keep log I/O off request threads, route the
+ * <tt>net.dehora.jst</tt> category through a {@link BoundedAsyncAppender},
+ * as the bundled log4j.xml does.</p>
+ * <p/>
  * <p>You'll also need to tell Jersey the package where this provider
  * is stored using the "com.sun.jersey.config.property.packages" property</p>
  */
@@ -65,12 +253,89 @@ public class StringTemplateProvider implements TemplateProcessor {
 
     private static final String STRINGTEMPLATE_TEMPLATE_PATH = "stringtemplate.template.path";
     private static final String WEB_INF_TEMPLATES = "/WEB-INF/templates";
+    private static final String STRINGTEMPLATE_OUTPUT_MODE = "stringtemplate.output.mode";
+    private static final String OUTPUT_MODE_BUFFERED = "buffered";
+    private static final String OUTPUT_MODE_STREAMING = "streaming";
+    private static final String OUTPUT_MODE_ENCODED = "encoded";
+    private static final String STRINGTEMPLATE_RESOLVE_CACHE_SIZE = "stringtemplate.resolve.cache.size";
+    private static final String STRINGTEMPLATE_RESOLVE_CACHE_TTL = "stringtemplate.resolve.cache.ttl";
+    private static final int DEFAULT_RESOLVE_CACHE_SIZE = 512;
+    private static final int DEFAULT_RESOLVE_CACHE_TTL = 0;
+    private static final String STRINGTEMPLATE_RESOLVE_CACHE_MISS_TTL = "stringtemplate.resolve.cache.miss.ttl";
+    private static final int DEFAULT_RESOLVE_CACHE_MISS_TTL = 5;
+    private static final String STRINGTEMPLATE_PRECOMPILE = "stringtemplate.precompile";
+    private static final String STRINGTEMPLATE_PRECOMPILE_WARMUP = "stringtemplate.precompile.warmup";
+    private static final String STRINGTEMPLATE_INPUT_ENCODING = "stringtemplate.input.encoding";
+    private static final String STRINGTEMPLATE_OUTPUT_ENCODING = "stringtemplate.output.encoding";
+    private static final String DEFAULT_ENCODING = "UTF-8";
+    private static final String STRINGTEMPLATE_OUTPUT_BUFFER_SIZE = "stringtemplate.output.buffer.size";
+    private static final String STRINGTEMPLATE_OUTPUT_FLUSH = "stringtemplate.output.flush";
+    private static final String STRINGTEMPLATE_OUTPUT_FLUSH_MARKER = "stringtemplate.output.flush.marker";
+    private static final int DEFAULT_OUTPUT_BUFFER_SIZE = 8192;
+    private static final int MAX_RETAINED_PAGE_BUFFER_SIZE = 256 * 1024;
+    private static final String STRINGTEMPLATE_OUTPUT_CACHE_SIZE = "stringtemplate.output.cache.size";
+    private static final String STRINGTEMPLATE_OUTPUT_CACHE_TTL = "stringtemplate.output.cache.ttl";
+    private static final String STRINGTEMPLATE_OUTPUT_CACHE_TTLS = "stringtemplate.output.cache.ttls";
+    private static final String STRINGTEMPLATE_OUTPUT_CACHE_MEMORY = "stringtemplate.output.cache.memory";
+    private static final String STRINGTEMPLATE_OUTPUT_COMPRESSION = "stringtemplate.output.compression";
+    private static final String STRINGTEMPLATE_OUTPUT_COMPRESSION_LEVEL = "stringtemplate.output.compression.level";
+    private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    private static final String STRINGTEMPLATE_ETAG = "stringtemplate.etag";
+    private static final String STRINGTEMPLATE_FRAGMENT_CACHE = "stringtemplate.fragment.cache";
+    private static final String STRINGTEMPLATE_FRAGMENT_CACHE_SIZE = "stringtemplate.fragment.cache.size";
+    private static final int DEFAULT_FRAGMENT_CACHE_SIZE = 1024;
+    private static final String STRINGTEMPLATE_MODEL_COPY = "stringtemplate.model.copy";
+    private static final String STRINGTEMPLATE_MODEL_RESOLVE_THREADS = "stringtemplate.model.resolve.threads";
+    private static final String STRINGTEMPLATE_MODEL_RESOLVE_TIMEOUT = "stringtemplate.model.resolve.timeout";
+    private static final int DEFAULT_MODEL_RESOLVE_TIMEOUT = 10;
+    private static final String STRINGTEMPLATE_METRICS = "stringtemplate.metrics";
+    private static final String STRINGTEMPLATE_RENDER_LISTENERS = "stringtemplate.render.listeners";
+    private static final String METRICS_OBJECT_NAME = "net.dehora.jst:type=TemplateMetrics,context=";
+    private static final String STRINGTEMPLATE_LOG_THROTTLE = "stringtemplate.log.throttle";
+    private static final int DEFAULT_LOG_THROTTLE = 60;
+    private static final int LOG_THROTTLE_MAX_KEYS = 1024;
+    private static final String STRINGTEMPLATE_RELOAD = "stringtemplate.reload";
+    private static final String STRINGTEMPLATE_RELOAD_INTERVAL = "stringtemplate.reload.interval";
+    private static final int DEFAULT_RELOAD_INTERVAL = 2;
+    private static final String STRINGTEMPLATE_COMPILE_THRESHOLD = "stringtemplate.compile.threshold";
+    private static final String STRINGTEMPLATE_TEMPLATE_SOURCE = "stringtemplate.template.source";
+    private static final String TEMPLATE_SOURCE_SERVLET = "servlet";
+    private static final String TEMPLATE_SOURCE_CLASSPATH = "classpath";
+    private static final String TEMPLATE_SOURCE_BUNDLE = "bundle";
+    private static final String STRINGTEMPLATE_TEMPLATE_BUNDLE = "stringtemplate.template.bundle";
     private static final String EXTENSION = ".st";
+    private static final String GROUP_EXTENSION = ".stg";
     private static final Logger _theLog = Logger.getLogger(StringTemplateProvider.class);
-    private static StringTemplateGroup _theStringTemplateGroup;
 
     private ServletContext _servletContext;
+    private TemplateSource _templateSource;
+    private HttpServletRequest _request;
+    private HttpServletResponse _response;
+    private WebInfCompatibleStringTemplateGroup _stringTemplateGroup;
     private String _templatesBasePath;
+    private boolean _streaming;
+    private boolean _encodeLiterals;
+    private boolean _flushMarker;
+    private boolean _copyModel = true;
+    private boolean _entityTags;
+    private final List<TemplateRenderListener> _renderListeners = new CopyOnWriteArrayList<TemplateRenderListener>();
+    // the ones named in stringtemplate.render.listeners, as opposed to added by the application
+    private final List<TemplateRenderListener> _configuredListeners = new ArrayList<TemplateRenderListener>();
+    private TemplateMetrics _metrics;
+    private ObjectName _metricsName;
+    private TemplateWatcher _templateWatcher;
+    private final PropertyAccessors _propertyAccessors = new PropertyAccessors();
+    private TemplateCompiler _templateCompiler = new TemplateCompiler(0, _propertyAccessors);
+    private LogThrottle _notFoundThrottle = new LogThrottle(DEFAULT_LOG_THROTTLE * 1000L, LOG_THROTTLE_MAX_KEYS);
+    private String _inputEncoding = DEFAULT_ENCODING;
+    private ResponseEncoding _responseEncoding = new ResponseEncoding(Charset.forName(DEFAULT_ENCODING),
+            DEFAULT_OUTPUT_BUFFER_SIZE, ResponseEncoding.Flush.CONTAINER);
+    private OutputCache _outputCache = new OutputCache(0, 0, new HashMap<String, Long>());
+    private ResponseCompression _compression = new ResponseCompression(0);
+    private FragmentCache _fragmentCache = new FragmentCache(0, new HashMap<String, FragmentCache.Spec>());
+    private ModelResolver _modelResolver = new ModelResolver(0, 0L);
+    private ResolvedPathCache _resolvedPathCache = new ResolvedPathCache(0, 0, 0);
+    private final RenderBuffers _renderBuffers = new RenderBuffers(DEFAULT_OUTPUT_BUFFER_SIZE, MAX_RETAINED_PAGE_BUFFER_SIZE);
 
     public StringTemplateProvider() {
     }
@@ -80,21 +345,36 @@ public class StringTemplateProvider implements TemplateProcessor {
             _theLog.debug("Resolving template path [" + path + "]");
         }
 
+        final ResolvedPathCache.Entry cached = _resolvedPathCache.get(path);
+        if (cached != null) {
+            return cached.getResolvedPath();
+        }
+        final String resolvedPath = resolveFromTemplateSource(path);
+        _resolvedPathCache.put(path, resolvedPath);
+        return resolvedPath;
+    }
+
+    /**
+     * Drops all cached template path resolutions, for example after the
+     * templates have been redeployed.
+     */
+    public void clearResolvedPathCache() {
+        _resolvedPathCache.clear();
+    }
+
+    private String resolveFromTemplateSource(final String path) {
         // StringTemplate doesn't want the file extension, so don't send it back 
         final String relativeTemplatePathNoExtension = path.endsWith(EXTENSION) ? path.substring(0, path.length() - 3) : path;
         final String fullTemplatePathNoExtension = getTemplatesBasePath() + relativeTemplatePathNoExtension;
-        boolean templateFound = false;
-
-        try {
-            templateFound = _servletContext.getResource(fullTemplatePathNoExtension + EXTENSION) != null;
-        } catch (MalformedURLException e) {
-            _theLog.warn("Malformed URL finding template [" + relativeTemplatePathNoExtension + "] from the servlet context", e);
-        }
+        final boolean templateFound = _templateSource.exists(fullTemplatePathNoExtension + EXTENSION);
 
         if (templateFound) {
             return fullTemplatePathNoExtension;
         } else {
-            _theLog.info("Template not found, path to resolve [" + path + "] context check path [" + fullTemplatePathNoExtension + EXTENSION + "]");
+            if (_theLog.isInfoEnabled() && _notFoundThrottle.allow(path)) {
+                _theLog.info("Template not found, path to resolve [" + path + "] context check path [" + fullTemplatePathNoExtension + EXTENSION + "]"
+                        + (_notFoundThrottle.getIntervalMillis() > 0 ? ", not logging it again for " + (_notFoundThrottle.getIntervalMillis() / 1000L) + "s" : ""));
+            }
             return null;
         }
     }
@@ -104,46 +384,476 @@ public class StringTemplateProvider implements TemplateProcessor {
         if (_theLog.isDebugEnabled()) {
             _theLog.debug("Processing template [" + resolvedPath + "] with model of type " + (model == null ? "null" : model.getClass().getSimpleName()));
         }
-        out.flush();
-        
-        final StringTemplate template = getInstanceOf(resolvedPath);
-        if (_theLog.isDebugEnabled()) {
-            _theLog.debug("OK: Resolved template [" + resolvedPath + "]");
+        final boolean notify = !_renderListeners.isEmpty();
+        final long start = notify ? System.nanoTime() : 0L;
+        final CountingOutputStream counted = notify ? new CountingOutputStream(out) : null;
+        if (notify) {
+            out = counted;
+        }
+        try {
+            labelCharset();
+            final ResponseCompression.Coding coding = negotiateCoding();
+            final String contentCoding = coding == null ? null : coding.getName();
+            final boolean tagging = isConditional();
+            // Futures and Callables are only equal to themselves, so those pages would never hit
+            final boolean caching = _outputCache.isEnabled() && OutputCache.isCacheable(model)
+                    && !ModelResolver.isDeferred(model);
+            if (caching) {
+                final OutputCache.Entry cached = _outputCache.get(resolvedPath, model, contentCoding);
+                if (cached != null) {
+                    if (_theLog.isDebugEnabled()) {
+                        _theLog.debug("OK: Served template [" + resolvedPath + "] from the output cache");
+                    }
+                    try {
+                        // pages are cached with an ETag whenever ETags are on
+                        if (!tagging || cached.getETag() == null || !notModified(cached.getETag())) {
+                            cached.writeTo(out);
+                            _responseEncoding.endPage(out);
+                        }
+                    } finally {
+                        _outputCache.release(cached);
+                    }
+                    if (notify) {
+                        fireRendered(resolvedPath, start, counted.getCount(), true);
+                    }
+                    return;
+                }
+            }
+
+            final StringTemplate template = getInstanceOf(resolvedPath);
+            if (_theLog.isDebugEnabled()) {
+                _theLog.debug("OK: Resolved template [" + resolvedPath + "]");
+            }
+
+            final Map<String, Object> templateModel = loadModel(model);
+            if (_modelResolver.isEnabled()) {
+                _modelResolver.resolve(resolvedPath, template, templateModel);
+            }
+            template.setAttributes(templateModel);
+            final Throwable error;
+            if (caching || tagging) {
+                final RenderBuffers.PageBytes page = _renderBuffers.getPageBytes();
+                error = render(resolvedPath, template, page, coding);
+                final String etag = error == null && _entityTags ? EntityTags.of(page.getBuffer(), 0, page.size()) : null;
+                if (error == null && caching) {
+                    _outputCache.put(resolvedPath, model, contentCoding, page.getBuffer(), page.size(), etag);
+                }
+                if (!tagging || etag == null || !notModified(etag)) {
+                    page.writeTo(out);
+                    _responseEncoding.endPage(out);
+                }
+            } else {
+                error = render(resolvedPath, template, out, coding);
+                if (coding != null) {
+                    _responseEncoding.endPage(out);
+                }
+            }
+            if (notify) {
+                if (error == null) {
+                    fireRendered(resolvedPath, start, counted.getCount(), false);
+                } else {
+                    fireFailed(resolvedPath, start, error);
+                }
+            }
+        } catch (IOException e) {
+            if (notify) {
+                fireFailed(resolvedPath, start, e);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            if (notify) {
+                fireFailed(resolvedPath, start, e);
+            }
+            throw e;
+        }
+    }
+
+    public void addRenderListener(TemplateRenderListener listener) {
+        _renderListeners.add(listener);
+    }
+
+    public void removeRenderListener(TemplateRenderListener listener) {
+        _renderListeners.remove(listener);
+    }
+
+    private void fireRendered(String resolvedPath, long start, long bytesWritten, boolean fromOutputCache) {
+        final long duration = System.nanoTime() - start;
+        for (TemplateRenderListener listener : _renderListeners) {
+            try {
+                listener.rendered(resolvedPath, duration, bytesWritten, fromOutputCache);
+            } catch (RuntimeException e) {
+                _theLog.warn("Render listener " + listener.getClass().getName() + " failed", e);
+            }
+        }
+    }
+
+    private void fireFailed(String resolvedPath, long start, Throwable error) {
+        final long duration = System.nanoTime() - start;
+        for (TemplateRenderListener listener : _renderListeners) {
+            try {
+                listener.failed(resolvedPath, duration, error);
+            } catch (RuntimeException e) {
+                _theLog.warn("Render listener " + listener.getClass().getName() + " failed", e);
+            }
         }
+    }
+
+    /**
+     * Drops all cached pages.
+     */
+    public void clearOutputCache() {
+        _outputCache.clear();
+    }
+
+    public long getOutputCacheHits() {
+        return _outputCache.getHits();
+    }
+
+    public long getOutputCacheMisses() {
+        return _outputCache.getMisses();
+    }
+
+    /**
+     * Drops all cached fragments.
+     */
+    public void clearFragmentCache() {
+        _fragmentCache.clear();
+    }
+
+    public long getFragmentCacheHits() {
+        return _fragmentCache.getHits();
+    }
 
-        final OutputStreamWriter writer = new OutputStreamWriter(out);
-        template.setAttributes(loadModel(model));
+    public long getFragmentCacheMisses() {
+        return _fragmentCache.getMisses();
+    }
+
+    /**
+     * True if ETags are on and this request is one a 304 can answer.
+     */
+    private boolean isConditional() {
+        if (!_entityTags || _request == null || _response == null) {
+            return false;
+        }
+        final String method = _request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+
+    /**
+     * Sets the ETag on the response and, if the client already has the
+     * page, commits a 304 in place of it.
+     *
+     * @return true if the page should not be written
+     */
+    private boolean notModified(String etag) throws IOException {
+        _response.setHeader("ETag", etag);
+        if (!EntityTags.matches(_request.getHeader("If-None-Match"), etag)) {
+            return false;
+        }
+        _response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        // commit now, otherwise Jersey sets its own status once writeTo returns
+        _response.flushBuffer();
+        return true;
+    }
+
+    /**
+     * Puts the output charset on the response's Content-Type. A charset the
+     * resource declares in its media type replaces this one, so it has to be
+     * the output charset too.
+     */
+    private void labelCharset() {
+        if (_response != null && !_response.isCommitted()) {
+            _response.setCharacterEncoding(_responseEncoding.getCharset().name());
+        }
+    }
+
+    /**
+     * Picks a content coding for this request and sets the response headers
+     * to match, or returns null to send the page uncompressed.
+     */
+    private ResponseCompression.Coding negotiateCoding() {
+        if (!_compression.isEnabled() || _request == null || _response == null) {
+            return null;
+        }
+        _response.addHeader("Vary", "Accept-Encoding");
+        final ResponseCompression.Coding coding = _compression.negotiate(_request.getHeader("Accept-Encoding"));
+        if (coding != null) {
+            _response.setHeader("Content-Encoding", coding.getName());
+        }
+        return coding;
+    }
+
+    /**
+     * Renders the template to the stream, compressed if a coding is given.
+     */
+    private Throwable render(String resolvedPath, StringTemplate template, OutputStream out,
+                             ResponseCompression.Coding coding) throws IOException {
+        if (coding == null) {
+            return render(resolvedPath, template, out);
+        }
+        final ResponseCompression.CompressingOutputStream compressed = _compression.getStream(out, coding);
+        final Throwable error = render(resolvedPath, template, compressed);
+        compressed.finish();
+        return error;
+    }
+
+    /**
+     * Renders the template to the stream, reporting any error in the page
+     * itself.
+     *
+     * @return the error that was reported, or null
+     */
+    private Throwable render(String resolvedPath, StringTemplate template, OutputStream out) throws IOException {
+        final ResponseEncoding.EncodingWriter writer = _responseEncoding.getWriter(out);
         try {
-            writer.write(template.toString());
-            writer.flush();
+            final CompiledTemplate compiled = _templateCompiler.isEnabled() ? _templateCompiler.compiledFor(template) : null;
+            if (isStreaming()) {
+                final StringTemplateWriter templateWriter = compiled != null && _encodeLiterals
+                        ? _renderBuffers.getEncodedLiteralWriter(writer)
+                        : _renderBuffers.getTemplateWriter(writer);
+                if (compiled != null) {
+                    compiled.write(template, templateWriter);
+                } else {
+                    template.write(templateWriter);
+                }
+            } else {
+                // the whole page is held back, apart from what $flush()$ lets go
+                final PageBuffer page = _renderBuffers.getPageBuffer(writer);
+                final StringTemplateWriter templateWriter = _renderBuffers.getTemplateWriter(page);
+                if (compiled != null) {
+                    compiled.write(template, templateWriter);
+                } else {
+                    template.write(templateWriter);
+                }
+                page.release();
+            }
+            writer.close();
             if (_theLog.isDebugEnabled()) {
                 _theLog.debug("OK: Processed template [" + resolvedPath + "]");
             }
+            return null;
         }
         catch (Throwable t) {
             _theLog.error("Error processing template [" + resolvedPath + "] ", t);
-            out.write("<pre class='template-err'>".getBytes());
-            t.printStackTrace(new PrintStream(out));
-            out.write("</pre>".getBytes());
+            if (isStreaming()) {
+                // keep whatever was rendered ahead of the error report
+                writer.flush();
+            }
+            final String encoding = _responseEncoding.getCharset().name();
+            out.write("<pre class='template-err'>".getBytes(encoding));
+            final PrintStream printStream = new PrintStream(out, false, encoding);
+            t.printStackTrace(printStream);
+            printStream.flush();
+            out.write("</pre>".getBytes(encoding));
+            return t;
         }
     }
 
+    /**
+     * Jersey injects a proxy to the current request, which the provider
+     * reads Accept-Encoding from.
+     */
+    @Context
+    public void setHttpServletRequest(final HttpServletRequest request) {
+        _request = request;
+    }
+
+    /**
+     * Jersey injects a proxy to the current response, which the provider
+     * sets Content-Encoding on.
+     */
+    @Context
+    public void setHttpServletResponse(final HttpServletResponse response) {
+        _response = response;
+    }
+
     @Context
     public void setServletContext(final ServletContext context) {
         _servletContext = context;
+        // found there by StringTemplateProviderListener on undeploy
+        context.setAttribute(StringTemplateProvider.class.getName(), this);
         setTemplateBasePath(context);
-        _theStringTemplateGroup = new WebInfCompatibleStringTemplateGroup(_servletContext);
+        setOutputMode(context);
+        setResolvedPathCache(context);
+        setEncodings(context);
+        setOutputCache(context);
+        setFragmentCache(context);
+        setCompression(context);
+        _entityTags = getBooleanInitParameter(context, STRINGTEMPLATE_ETAG, false);
+        _copyModel = getBooleanInitParameter(context, STRINGTEMPLATE_MODEL_COPY, true);
+        setModelResolver(context);
+        setRenderListeners(context);
+        setTemplateCompiler(context);
+        _notFoundThrottle = new LogThrottle(getIntInitParameter(context, STRINGTEMPLATE_LOG_THROTTLE, DEFAULT_LOG_THROTTLE) * 1000L, LOG_THROTTLE_MAX_KEYS);
+        setTemplateSource(context);
+        _stringTemplateGroup = new WebInfCompatibleStringTemplateGroup(_templateSource);
+        _stringTemplateGroup.setFileCharEncoding(_inputEncoding);
+        _flushMarker = getBooleanInitParameter(context, STRINGTEMPLATE_OUTPUT_FLUSH_MARKER, false);
+        if (_flushMarker) {
+            _stringTemplateGroup.defineFlushMarker();
+        }
+        loadGroupFiles();
+        if (getBooleanInitParameter(context, STRINGTEMPLATE_PRECOMPILE, false)) {
+            precompileTemplates(getBooleanInitParameter(context, STRINGTEMPLATE_PRECOMPILE_WARMUP, false));
+        }
+        setTemplateWatcher(context);
+    }
+
+    private void setTemplateWatcher(ServletContext context) {
+        if (_templateWatcher != null) {
+            _templateWatcher.stop();
+            _templateWatcher = null;
+        }
+        if (!getBooleanInitParameter(context, STRINGTEMPLATE_RELOAD, false)) {
+            return;
+        }
+        if (!(_templateSource instanceof ServletContextTemplateSource)) {
+            _theLog.warn("'" + STRINGTEMPLATE_RELOAD + "' only works with templates read from the servlet context; not reloading templates");
+            return;
+        }
+        final String realPath = context.getRealPath(getTemplatesBasePath());
+        if (realPath == null || !new File(realPath).isDirectory()) {
+            _theLog.warn("'" + STRINGTEMPLATE_RELOAD + "' needs an exploded webapp, can't find [" + getTemplatesBasePath() + "] on disk; not reloading templates");
+            return;
+        }
+        final WebInfCompatibleStringTemplateGroup group = _stringTemplateGroup;
+        final int interval = Math.max(1, getIntInitParameter(context, STRINGTEMPLATE_RELOAD_INTERVAL, DEFAULT_RELOAD_INTERVAL));
+        _templateWatcher = new TemplateWatcher(new File(realPath), getTemplatesBasePath(),
+                new String[]{EXTENSION, GROUP_EXTENSION}, interval * 1000L,
+                new TemplateWatcher.Listener() {
+                    public void templateChanged(String resourcePath) {
+                        if (resourcePath.endsWith(GROUP_EXTENSION)) {
+                            loadGroupFiles();
+                        } else if (group.precompile(resourcePath) == null) {
+                            group.forget(resourcePath);
+                        }
+                        templatesChanged(resourcePath);
+                    }
+
+                    public void templateRemoved(String resourcePath) {
+                        if (resourcePath.endsWith(GROUP_EXTENSION)) {
+                            loadGroupFiles();
+                        } else {
+                            group.forget(resourcePath);
+                        }
+                        templatesChanged(resourcePath);
+                    }
+                });
+        _templateWatcher.start();
+        _theLog.info("Reloading changed templates under [" + realPath + "] every " + interval + "s");
+    }
+
+    private void templatesChanged(String resourcePath) {
+        _theLog.info("Reloaded template [" + resourcePath + "]");
+        // added or removed files change what resolves, and any template can be included by a cached page
+        clearResolvedPathCache();
+        clearOutputCache();
+        clearFragmentCache();
+        _modelResolver.clear();
+    }
+
+    private void precompileTemplates(final boolean warmup) {
+        final long start = System.currentTimeMillis();
+        final WebInfCompatibleStringTemplateGroup group = _stringTemplateGroup;
+        final List<String> templatePaths = new ArrayList<String>();
+        findTemplatePaths(getTemplatesBasePath(), EXTENSION, templatePaths);
+
+        final int threads = Math.max(1, Math.min(templatePaths.size(), Runtime.getRuntime().availableProcessors()));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(templatePaths.size());
+        for (final String templatePath : templatePaths) {
+            results.add(executor.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    final StringTemplate template = group.precompile(templatePath);
+                    if (template == null) {
+                        return false;
+                    }
+                    if (warmup) {
+                        try {
+                            template.getInstanceOf().toString();
+                        } catch (Throwable t) {
+                            _theLog.warn("Error warming up template [" + templatePath + "]", t);
+                        }
+                    }
+                    return true;
+                }
+            }));
+        }
+
+        int compiled = 0;
+        try {
+            for (Future<Boolean> result : results) {
+                try {
+                    if (result.get()) {
+                        compiled++;
+                    }
+                } catch (ExecutionException e) {
+                    _theLog.warn("Error precompiling template", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            _theLog.warn("Interrupted precompiling templates under [" + getTemplatesBasePath() + "]");
+        } finally {
+            executor.shutdownNow();
+        }
+        _theLog.info("Precompiled " + compiled + " of " + templatePaths.size() + " templates under ["
+                + getTemplatesBasePath() + "]" + (warmup ? " with warmup" : "") + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Parses every ".stg" group file under the template path into one chain
+     * of groups that the page templates can call into, replacing any group
+     * files loaded before. Files are chained in path order, so a template
+     * defined in two files comes from the later one.
+     */
+    private void loadGroupFiles() {
+        final WebInfCompatibleStringTemplateGroup group = _stringTemplateGroup;
+        final List<String> groupPaths = new ArrayList<String>();
+        findTemplatePaths(getTemplatesBasePath(), GROUP_EXTENSION, groupPaths);
+        Collections.sort(groupPaths);
+        StringTemplateGroup shared = null;
+        int loaded = 0;
+        for (String groupPath : groupPaths) {
+            final StringTemplateGroup groupFile = group.loadGroupFile(groupPath, shared);
+            if (groupFile != null) {
+                shared = groupFile;
+                loaded += groupFile.getTemplateNames().size();
+            }
+        }
+        group.setSharedGroup(shared);
+        if (!groupPaths.isEmpty()) {
+            _theLog.info("Loaded " + loaded + " templates from " + groupPaths.size() + " group files under ["
+                    + getTemplatesBasePath() + "]");
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private void findTemplatePaths(final String directory, final String extension, final List<String> templatePaths) {
+        final Set<String> resourcePaths = _templateSource.list(directory.endsWith("/") ? directory : directory + "/");
+        if (resourcePaths == null) {
+            return;
+        }
+        for (String resourcePath : resourcePaths) {
+            if (resourcePath.endsWith("/")) {
+                findTemplatePaths(resourcePath, extension, templatePaths);
+            } else if (resourcePath.endsWith(extension)) {
+                templatePaths.add(resourcePath);
+            }
+        }
     }
 
     @SuppressWarnings({"unchecked"})
     private Map<String, Object> loadModel(final Object model) {
         final Map<String, Object> templateModel;
         if (model instanceof Map) {
-            templateModel = new HashMap<String, Object>((Map<String, Object>) model);
+            templateModel = isCopyModel() ? new HashMap<String, Object>((Map<String, Object>) model) : (Map<String, Object>) model;
+        } else if (isCopyModel() || _modelResolver.isEnabled()) {
+            // the resolver writes into the map
+            templateModel = new HashMap<String, Object>(2);
+            templateModel.put("it", model);
         } else {
-            templateModel = new HashMap<String, Object>() {{
-                put("it", model);
-            }};
+            templateModel = Collections.singletonMap("it", model);
         }
         return templateModel;
     }
@@ -156,8 +866,389 @@ public class StringTemplateProvider implements TemplateProcessor {
         this._templatesBasePath = _templatesBasePath;
     }
 
+    private boolean isCopyModel() {
+        return _copyModel;
+    }
+
+    private boolean isStreaming() {
+        return _streaming;
+    }
+
+    private void setOutputMode(ServletContext context) {
+        final String mode = context.getInitParameter(STRINGTEMPLATE_OUTPUT_MODE);
+        _streaming = false;
+        _encodeLiterals = false;
+        if (mode == null || "".equals(mode)) {
+            _theLog.info("No '" + STRINGTEMPLATE_OUTPUT_MODE + "' in context-param, defaulting to '" + OUTPUT_MODE_BUFFERED + "'");
+        } else if (OUTPUT_MODE_STREAMING.equalsIgnoreCase(mode.trim())) {
+            _streaming = true;
+        } else if (OUTPUT_MODE_ENCODED.equalsIgnoreCase(mode.trim())) {
+            _streaming = true;
+            _encodeLiterals = true;
+        } else if (!OUTPUT_MODE_BUFFERED.equalsIgnoreCase(mode.trim())) {
+            _theLog.warn("Unknown '" + STRINGTEMPLATE_OUTPUT_MODE + "' value [" + mode + "], defaulting to '" + OUTPUT_MODE_BUFFERED + "'");
+        }
+    }
+
+    private void setTemplateCompiler(ServletContext context) {
+        int threshold = getIntInitParameter(context, STRINGTEMPLATE_COMPILE_THRESHOLD, 0);
+        if (_encodeLiterals) {
+            // pre-encoded literals live in compiled templates, so compile on first use by default
+            threshold = threshold > 0 ? threshold : 1;
+            _templateCompiler = new TemplateCompiler(threshold, _responseEncoding.getCharset(), _propertyAccessors);
+        } else {
+            _templateCompiler = new TemplateCompiler(threshold, _propertyAccessors);
+        }
+    }
+
+    private void setResolvedPathCache(ServletContext context) {
+        final int size = getIntInitParameter(context, STRINGTEMPLATE_RESOLVE_CACHE_SIZE, DEFAULT_RESOLVE_CACHE_SIZE);
+        final int ttl = getIntInitParameter(context, STRINGTEMPLATE_RESOLVE_CACHE_TTL, DEFAULT_RESOLVE_CACHE_TTL);
+        final int missTtl = getIntInitParameter(context, STRINGTEMPLATE_RESOLVE_CACHE_MISS_TTL, DEFAULT_RESOLVE_CACHE_MISS_TTL);
+        _resolvedPathCache = new ResolvedPathCache(size, ttl * 1000L, missTtl * 1000L);
+    }
+
+    private void setEncodings(ServletContext context) {
+        _inputEncoding = getCharsetInitParameter(context, STRINGTEMPLATE_INPUT_ENCODING).name();
+        int bufferSize = getIntInitParameter(context, STRINGTEMPLATE_OUTPUT_BUFFER_SIZE, DEFAULT_OUTPUT_BUFFER_SIZE);
+        if (bufferSize < 16) {
+            _theLog.warn("'" + STRINGTEMPLATE_OUTPUT_BUFFER_SIZE + "' of [" + bufferSize + "] is too small, defaulting to '" + DEFAULT_OUTPUT_BUFFER_SIZE + "'");
+            bufferSize = DEFAULT_OUTPUT_BUFFER_SIZE;
+        }
+        _responseEncoding = new ResponseEncoding(getCharsetInitParameter(context, STRINGTEMPLATE_OUTPUT_ENCODING),
+                bufferSize, getFlushInitParameter(context));
+    }
+
+    private void setOutputCache(ServletContext context) {
+        final int size = getIntInitParameter(context, STRINGTEMPLATE_OUTPUT_CACHE_SIZE, 0);
+        final int ttl = getIntInitParameter(context, STRINGTEMPLATE_OUTPUT_CACHE_TTL, 0);
+        final Map<String, Long> ttls = new HashMap<String, Long>();
+        final String value = context.getInitParameter(STRINGTEMPLATE_OUTPUT_CACHE_TTLS);
+        if (value != null) {
+            for (String setting : value.split(",")) {
+                if ("".equals(setting.trim())) {
+                    continue;
+                }
+                final int separator = setting.indexOf('=');
+                try {
+                    String path = setting.substring(0, separator).trim();
+                    path = path.endsWith(EXTENSION) ? path.substring(0, path.length() - EXTENSION.length()) : path;
+                    path = path.startsWith("/") ? path : "/" + path;
+                    ttls.put(getTemplatesBasePath() + path, Long.parseLong(setting.substring(separator + 1).trim()) * 1000L);
+                } catch (RuntimeException e) {
+                    _theLog.warn("Invalid '" + STRINGTEMPLATE_OUTPUT_CACHE_TTLS + "' entry [" + setting + "], ignoring it");
+                }
+            }
+        }
+        final int memory = getIntInitParameter(context, STRINGTEMPLATE_OUTPUT_CACHE_MEMORY, 0);
+        OffHeapPageStore store = null;
+        if (size > 0 && memory > 0) {
+            try {
+                store = new OffHeapPageStore(memory * 1024L * 1024L);
+                _theLog.info("Keeping up to " + size + " cached pages in " + memory + "MB outside the heap");
+            } catch (OutOfMemoryError e) {
+                _theLog.warn("Can't reserve " + memory + "MB of direct memory for '" + STRINGTEMPLATE_OUTPUT_CACHE_MEMORY
+                        + "', raise -XX:MaxDirectMemorySize; keeping cached pages on the heap");
+            }
+        }
+        _outputCache = new OutputCache(size, ttl * 1000L, ttls, store);
+    }
+
+    private void setTemplateSource(ServletContext context) {
+        closeTemplateSource();
+        _templateSource = new ServletContextTemplateSource(context);
+        final String value = context.getInitParameter(STRINGTEMPLATE_TEMPLATE_SOURCE);
+        if (value == null || "".equals(value) || TEMPLATE_SOURCE_SERVLET.equalsIgnoreCase(value.trim())) {
+            return;
+        }
+        if (TEMPLATE_SOURCE_CLASSPATH.equalsIgnoreCase(value.trim())) {
+            final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            _templateSource = new ClasspathTemplateSource(classLoader != null ? classLoader : getClass().getClassLoader());
+            _theLog.info("Reading templates from the classpath");
+        } else if (TEMPLATE_SOURCE_BUNDLE.equalsIgnoreCase(value.trim())) {
+            final String bundlePath = context.getInitParameter(STRINGTEMPLATE_TEMPLATE_BUNDLE);
+            if (bundlePath == null || "".equals(bundlePath.trim())) {
+                _theLog.warn("'" + STRINGTEMPLATE_TEMPLATE_SOURCE + "' is 'bundle' but no '" + STRINGTEMPLATE_TEMPLATE_BUNDLE + "' is given, reading templates from the servlet context");
+                return;
+            }
+            try {
+                final BundleTemplateSource bundle = openBundle(context, bundlePath.trim());
+                _templateSource = bundle;
+                _theLog.info("Reading templates from [" + bundlePath.trim() + "], indexed " + bundle.size() + " files");
+            } catch (IOException e) {
+                _theLog.warn("Can't open template bundle [" + bundlePath.trim() + "], reading templates from the servlet context", e);
+            }
+        } else {
+            try {
+                _templateSource = (TemplateSource) Class.forName(value.trim(), true,
+                        Thread.currentThread().getContextClassLoader()).getConstructor().newInstance();
+                _theLog.info("Reading templates from " + value.trim());
+            } catch (InvocationTargetException e) {
+                _theLog.warn("Can't create template source [" + value.trim() + "] named in '" + STRINGTEMPLATE_TEMPLATE_SOURCE + "', reading templates from the servlet context", e.getCause());
+            } catch (Exception e) {
+                _theLog.warn("Can't create template source [" + value.trim() + "] named in '" + STRINGTEMPLATE_TEMPLATE_SOURCE + "', reading templates from the servlet context", e);
+            }
+        }
+    }
+
+    /**
+     * Opens the bundle jar on disk, as a path in the webapp or on the file
+     * system. A bundle inside a packed war is copied out to a temporary file,
+     * which is deleted when the source is closed.
+     */
+    private BundleTemplateSource openBundle(ServletContext context, String bundlePath) throws IOException {
+        final String realPath = context.getRealPath(bundlePath);
+        if (realPath != null && new File(realPath).isFile()) {
+            return new BundleTemplateSource(new File(realPath), false);
+        }
+        final InputStream in = context.getResourceAsStream(bundlePath);
+        if (in == null) {
+            return new BundleTemplateSource(new File(bundlePath), false);
+        }
+        final File copy = File.createTempFile("templates", ".jar");
+        copy.deleteOnExit();
+        try {
+            final OutputStream out = new FileOutputStream(copy);
+            try {
+                final byte[] buffer = new byte[DEFAULT_OUTPUT_BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            copy.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        return new BundleTemplateSource(copy, true);
+    }
+
+    private void closeTemplateSource() {
+        if (_templateSource instanceof Closeable) {
+            try {
+                ((Closeable) _templateSource).close();
+            } catch (IOException e) {
+                _theLog.warn("Can't close the template source", e);
+            }
+        }
+    }
+
+    private void setFragmentCache(ServletContext context) {
+        final Map<String, FragmentCache.Spec> specs = new HashMap<String, FragmentCache.Spec>();
+        final String value = context.getInitParameter(STRINGTEMPLATE_FRAGMENT_CACHE);
+        if (value != null) {
+            for (String setting : splitOutsideParentheses(value)) {
+                if ("".equals(setting.trim())) {
+                    continue;
+                }
+                try {
+                    final int equals = setting.indexOf('=', setting.lastIndexOf(')') + 1);
+                    final String declaration = (equals < 0 ? setting : setting.substring(0, equals)).trim();
+                    final long ttlMillis = equals < 0 ? 0L : Long.parseLong(setting.substring(equals + 1).trim()) * 1000L;
+                    final int open = declaration.indexOf('(');
+                    final String name = (open < 0 ? declaration : declaration.substring(0, open)).trim();
+                    final List<String> attributes = new ArrayList<String>();
+                    if (open >= 0) {
+                        for (String attribute : declaration.substring(open + 1, declaration.indexOf(')', open)).split(",")) {
+                            if (!"".equals(attribute.trim())) {
+                                attributes.add(attribute.trim());
+                            }
+                        }
+                    }
+                    if ("".equals(name)) {
+                        throw new IllegalArgumentException(setting);
+                    }
+                    specs.put(name, new FragmentCache.Spec(attributes.toArray(new String[attributes.size()]), ttlMillis));
+                } catch (RuntimeException e) {
+                    _theLog.warn("Invalid '" + STRINGTEMPLATE_FRAGMENT_CACHE + "' entry [" + setting + "], ignoring it");
+                }
+            }
+        }
+        _fragmentCache = new FragmentCache(getIntInitParameter(context, STRINGTEMPLATE_FRAGMENT_CACHE_SIZE, DEFAULT_FRAGMENT_CACHE_SIZE), specs);
+        if (_fragmentCache.isEnabled()) {
+            _theLog.info("Caching fragments of templates " + specs.keySet());
+        }
+    }
+
+    // "a(x,y)=60, b=5" splits into "a(x,y)=60" and " b=5"
+    private static List<String> splitOutsideParentheses(String value) {
+        final List<String> parts = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                parts.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(value.substring(start));
+        return parts;
+    }
+
+    private void setModelResolver(ServletContext context) {
+        _modelResolver.stop();
+        final int threads = getIntInitParameter(context, STRINGTEMPLATE_MODEL_RESOLVE_THREADS, 0);
+        final int timeout = getIntInitParameter(context, STRINGTEMPLATE_MODEL_RESOLVE_TIMEOUT, DEFAULT_MODEL_RESOLVE_TIMEOUT);
+        _modelResolver = new ModelResolver(threads, timeout * 1000L);
+        if (_modelResolver.isEnabled()) {
+            _theLog.info("Resolving Future and Callable model values on " + threads + " threads, waiting up to " + timeout + "s");
+        }
+    }
+
+    private void setCompression(ServletContext context) {
+        _compression.stop();
+        if (!getBooleanInitParameter(context, STRINGTEMPLATE_OUTPUT_COMPRESSION, false)) {
+            _compression = new ResponseCompression(0);
+            return;
+        }
+        int level = getIntInitParameter(context, STRINGTEMPLATE_OUTPUT_COMPRESSION_LEVEL, DEFAULT_COMPRESSION_LEVEL);
+        if (level < 1 || level > 9) {
+            _theLog.warn("'" + STRINGTEMPLATE_OUTPUT_COMPRESSION_LEVEL + "' of [" + level + "] is not between 1 and 9, defaulting to '" + DEFAULT_COMPRESSION_LEVEL + "'");
+            level = DEFAULT_COMPRESSION_LEVEL;
+        }
+        _compression = new ResponseCompression(level);
+        _theLog.info("Compressing pages for clients that accept gzip or deflate, level " + level);
+    }
+
+    /**
+     * Releases what the provider registered with the platform and stops its
+     * threads. Called by {@link StringTemplateProviderListener} when the
+     * webapp is undeployed.
+     */
+    public void destroy() {
+        unregisterMetrics();
+        if (_templateWatcher != null) {
+            _templateWatcher.stop();
+            _templateWatcher = null;
+        }
+        _compression.stop();
+        _modelResolver.stop();
+        closeTemplateSource();
+        _theLog.info("Stopped the template provider");
+    }
+
+    private void setRenderListeners(ServletContext context) {
+        if (_metrics != null) {
+            _renderListeners.remove(_metrics);
+            unregisterMetrics();
+            _metrics = null;
+        }
+        _renderListeners.removeAll(_configuredListeners);
+        _configuredListeners.clear();
+        if (getBooleanInitParameter(context, STRINGTEMPLATE_METRICS, false)) {
+            _metrics = new TemplateMetrics(_outputCache);
+            registerMetrics(context);
+            _renderListeners.add(_metrics);
+        }
+        final String value = context.getInitParameter(STRINGTEMPLATE_RENDER_LISTENERS);
+        if (value == null) {
+            return;
+        }
+        for (String className : value.split(",")) {
+            if ("".equals(className.trim())) {
+                continue;
+            }
+            try {
+                final TemplateRenderListener listener = (TemplateRenderListener) Class.forName(className.trim(), true,
+                        Thread.currentThread().getContextClassLoader()).getConstructor().newInstance();
+                _configuredListeners.add(listener);
+                _renderListeners.add(listener);
+            } catch (InvocationTargetException e) {
+                _theLog.warn("Can't create render listener [" + className.trim() + "] named in '" + STRINGTEMPLATE_RENDER_LISTENERS + "'", e.getCause());
+            } catch (Exception e) {
+                _theLog.warn("Can't create render listener [" + className.trim() + "] named in '" + STRINGTEMPLATE_RENDER_LISTENERS + "'", e);
+            }
+        }
+    }
+
+    private void registerMetrics(ServletContext context) {
+        final String contextPath = context.getContextPath();
+        try {
+            final ObjectName name = new ObjectName(METRICS_OBJECT_NAME
+                    + ObjectName.quote(contextPath == null || "".equals(contextPath) ? "/" : contextPath));
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(_metrics, name);
+            _metricsName = name;
+            _theLog.info("Registered template metrics as [" + name + "]");
+        } catch (Exception e) {
+            _theLog.warn("Can't register template metrics with the MBean server", e);
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (_metricsName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(_metricsName);
+            _theLog.info("Unregistered template metrics [" + _metricsName + "]");
+        } catch (Exception e) {
+            _theLog.warn("Can't unregister template metrics [" + _metricsName + "] from the MBean server", e);
+        }
+        _metricsName = null;
+    }
+
+    private ResponseEncoding.Flush getFlushInitParameter(ServletContext context) {
+        final String value = context.getInitParameter(STRINGTEMPLATE_OUTPUT_FLUSH);
+        if (value == null || "".equals(value)) {
+            return ResponseEncoding.Flush.CONTAINER;
+        }
+        try {
+            return ResponseEncoding.Flush.valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            _theLog.warn("Unknown '" + STRINGTEMPLATE_OUTPUT_FLUSH + "' value [" + value + "], defaulting to 'container'");
+            return ResponseEncoding.Flush.CONTAINER;
+        }
+    }
+
+    private Charset getCharsetInitParameter(ServletContext context, String name) {
+        final String value = context.getInitParameter(name);
+        if (value == null || "".equals(value)) {
+            return Charset.forName(DEFAULT_ENCODING);
+        }
+        try {
+            return Charset.forName(value.trim());
+        } catch (IllegalArgumentException e) {
+            _theLog.warn("Unsupported '" + name + "' value [" + value + "], defaulting to '" + DEFAULT_ENCODING + "'");
+            return Charset.forName(DEFAULT_ENCODING);
+        }
+    }
+
+    private int getIntInitParameter(ServletContext context, String name, int defaultValue) {
+        final String value = context.getInitParameter(name);
+        if (value == null || "".equals(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            _theLog.warn("Invalid '" + name + "' value [" + value + "], defaulting to '" + defaultValue + "'");
+            return defaultValue;
+        }
+    }
+
+    private boolean getBooleanInitParameter(ServletContext context, String name, boolean defaultValue) {
+        final String value = context.getInitParameter(name);
+        if (value == null || "".equals(value)) {
+            return defaultValue;
+        }
+        return Boolean.valueOf(value.trim());
+    }
+
     private StringTemplate getInstanceOf(String resolvedPath) throws IOException {
-        return _theStringTemplateGroup.getInstanceOf(resolvedPath);
+        return _stringTemplateGroup.getInstanceOf(resolvedPath);
     }
 
     private void setTemplateBasePath(ServletContext context) {
@@ -170,29 +1261,200 @@ public class StringTemplateProvider implements TemplateProcessor {
 
     private class WebInfCompatibleStringTemplateGroup extends StringTemplateGroup {
 
-        private ServletContext _context;
+        private TemplateSource _source;
+        // parsed templates, read without taking the group's lock
+        private final ConcurrentMap<String, StringTemplate> _prototypes = new ConcurrentHashMap<String, StringTemplate>();
 
-        WebInfCompatibleStringTemplateGroup(ServletContext ctx) {
+        WebInfCompatibleStringTemplateGroup(TemplateSource source) {
             super("templates", null, DefaultTemplateLexer.class);
-            _context = ctx;
+            _source = source;
+        }
+
+        /**
+         * Hands out instances of already parsed templates without going
+         * through the synchronized lookupTemplate; only the first lookup of
+         * each template takes the lock.
+         */
+        @Override
+        protected StringTemplate getInstanceOf(StringTemplate enclosingInstance, String name) {
+            if (name.startsWith("super.")) {
+                return super.getInstanceOf(enclosingInstance, name);
+            }
+            StringTemplate prototype = _prototypes.get(name);
+            if (prototype == null) {
+                // held across both calls so a concurrent reload can't be overwritten
+                synchronized (this) {
+                    prototype = lookupTemplate(enclosingInstance, name);
+                    if (prototype == null) {
+                        return null;
+                    }
+                    _prototypes.putIfAbsent(name, prototype);
+                }
+            }
+            return _fragmentCache.getInstanceOf(prototype);
+        }
+
+        /**
+         * Makes the templates of parsed group files callable from page
+         * templates, by way of StringTemplate's super group lookup, and
+         * drops any templates taken from the group files before.
+         */
+        synchronized void setSharedGroup(StringTemplateGroup shared) {
+            setSuperGroup(shared);
+            // inherited templates, and names that weren't found anywhere, have another native group
+            for (Iterator<?> defined = templates.values().iterator(); defined.hasNext();) {
+                if (((StringTemplate) defined.next()).getNativeGroup() != this) {
+                    defined.remove();
+                }
+            }
+            for (Iterator<StringTemplate> prototypes = _prototypes.values().iterator(); prototypes.hasNext();) {
+                if (prototypes.next().getNativeGroup() != this) {
+                    prototypes.remove();
+                }
+            }
+        }
+
+        /**
+         * Parses a group file from the template source, with the given group
+         * as its super group.
+         *
+         * @return the group, or null if the file couldn't be read
+         */
+        StringTemplateGroup loadGroupFile(String groupResourcePath, StringTemplateGroup superGroup) {
+            Reader reader = null;
+            try {
+                final InputStream inputStream = _source.open(groupResourcePath);
+                if (inputStream == null) {
+                    error("Can't find group file [" + groupResourcePath + "] in the template source");
+                    return null;
+                }
+                reader = new BufferedReader(getInputStreamReader(inputStream));
+                final StringTemplateGroup group = new StringTemplateGroup(reader, DefaultTemplateLexer.class, listener, superGroup);
+                for (Object name : group.getTemplateNames()) {
+                    PropertyExprs.install(group.lookupTemplate((String) name), _propertyAccessors);
+                }
+                reader.close();
+                reader = null;
+                return group;
+            } catch (IOException e) {
+                error("Can't load group file [" + groupResourcePath + "] from the template source", e);
+                return null;
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException inner) {
+                        error("Cannot close connection for group file [" + groupResourcePath + "]", inner);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Makes <tt>$flush()$</tt> call the {@link FlushMarker}, ahead of
+         * any template of the same name.
+         */
+        @SuppressWarnings({"unchecked"})
+        synchronized void defineFlushMarker() {
+            final FlushMarker marker = new FlushMarker(this);
+            templates.put(FlushMarker.NAME, marker);
+            _prototypes.put(FlushMarker.NAME, marker);
+        }
+
+        /**
+         * Drops a template, so the next lookup goes back to the template
+         * source for it.
+         */
+        synchronized void forget(String templateResourcePath) {
+            final String templateName = getTemplateNameFromFileName(templateResourcePath);
+            if (templates.get(templateName) instanceof FlushMarker) {
+                return;
+            }
+            templates.remove(templateName);
+            _prototypes.remove(templateName);
+        }
+
+        @Override
+        public synchronized StringTemplate defineTemplate(String name, String template) {
+            final StringTemplate defined = super.defineTemplate(name, template);
+            PropertyExprs.install(defined, _propertyAccessors);
+            _prototypes.remove(name);
+            return defined;
         }
 
         @Override
         protected StringTemplate loadTemplateFromBeneathRootDirOrCLASSPATH(String templateResourcePath) {
-            StringTemplate template = null;
+            final StringTemplateGroup shared = getSuperGroup();
+            if (shared != null && shared.isDefined(getTemplateNameFromFileName(templateResourcePath))) {
+                // lookupTemplate takes it from the group files, no need to ask the template source
+                return null;
+            }
+            final String pattern = readTemplatePattern(templateResourcePath);
+            if (pattern == null) {
+                return null;
+            }
+            return defineTemplate(getTemplateNameFromFileName(templateResourcePath), pattern);
+        }
+
+        /**
+         * Parses the template outside the group's lock and then adds it to
+         * the group, so several templates can be compiled at once.
+         */
+        @SuppressWarnings({"unchecked"})
+        StringTemplate precompile(String templateResourcePath) {
+            final String pattern = readTemplatePattern(templateResourcePath);
+            if (pattern == null) {
+                return null;
+            }
+            final String templateName = getTemplateNameFromFileName(templateResourcePath);
+            if (templateName.indexOf('.') >= 0) {
+                error("Cannot precompile [" + templateResourcePath + "], template names cannot contain '.'");
+                return null;
+            }
+            final StringTemplate template = createStringTemplate();
+            template.setName(templateName);
+            template.setGroup(this);
+            template.setNativeGroup(this);
+            template.setTemplate(pattern);
+            template.setErrorListener(listener);
+            PropertyExprs.install(template, _propertyAccessors);
+            synchronized (this) {
+                if (templates.get(templateName) instanceof FlushMarker) {
+                    return null;
+                }
+                templates.put(templateName, template);
+                _prototypes.put(templateName, template);
+            }
+            return template;
+        }
+
+        private String readTemplatePattern(String templateResourcePath) {
+            String pattern = null;
             BufferedReader bufferedReader = null;
             try {
-                URL target = _context.getResource(templateResourcePath);
-                InputStream inputStream = target.openStream();
+                InputStream inputStream = _source.open(templateResourcePath);
+                if (inputStream == null) {
+                    error("Can't find [" + templateResourcePath + "] in the template source");
+                    return null;
+                }
                 InputStreamReader inputStreamReader = getInputStreamReader(inputStream);
                 bufferedReader = new BufferedReader(inputStreamReader);
-                template = loadTemplate(name, bufferedReader);
+                // same line handling as StringTemplateGroup.loadTemplate
+                final String newline = System.getProperty("line.separator");
+                final StringBuilder buffer = new StringBuilder(300);
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    buffer.append(line).append(newline);
+                }
+                pattern = buffer.toString().trim();
+                if (pattern.length() == 0) {
+                    error("no text in template '" + templateResourcePath + "'");
+                    pattern = null;
+                }
                 bufferedReader.close();
                 bufferedReader = null;
-            } catch (MalformedURLException e) {
-                error("Malformed URL in finding template[" + templateResourcePath + "] from the servlet context" + e.getMessage(), e);
             } catch (IOException e) {
-                error("Can't load [" + templateResourcePath + "] from the servlet context", e);
+                error("Can't load [" + templateResourcePath + "] from the template source", e);
             }
             finally {
                 if (bufferedReader != null) {
@@ -203,7 +1465,7 @@ public class StringTemplateProvider implements TemplateProcessor {
                     }
                 }
             }
-            return template;
+            return pattern;
         }
     }
 }
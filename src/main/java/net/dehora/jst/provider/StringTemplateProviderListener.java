@@ -0,0 +1,42 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * <p>Shuts down the {@link StringTemplateProvider} when the webapp is
+ * undeployed, and then closes any {@link BoundedAsyncAppender}s, so nothing
+ * the provider registered or started outlives the webapp's class loader.
+ * Declare it as a <tt>&lt;listener&gt;</tt> in web.xml.</p>
+ */
+public class StringTemplateProviderListener implements ServletContextListener {
+
+    public void contextInitialized(final ServletContextEvent event) {
+    }
+
+    public void contextDestroyed(final ServletContextEvent event) {
+        final Object provider = event.getServletContext().getAttribute(StringTemplateProvider.class.getName());
+        if (provider instanceof StringTemplateProvider) {
+            ((StringTemplateProvider) provider).destroy();
+        }
+        // last, so the provider's own shutdown is logged
+        BoundedAsyncAppender.closeAll();
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import org.antlr.stringtemplate.StringTemplate;
+import org.apache.log4j.Logger;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Counts renders per template and builds a {@link CompiledTemplate}
+ * once a template has been rendered <tt>threshold</tt> times.</p>
+ * <p/>
+ * <p>A reloaded template has new chunks, so its count starts over and it
+ * is compiled again once it is hot. Compiled templates share the
+ * provider's {@link PropertyAccessors}, so a bean class is inspected once
+ * no matter how many templates read it.</p>
+ */
+class TemplateCompiler {
+
+    private static final class Entry {
+        private final List<?> _chunks;
+        private final AtomicInteger _renders = new AtomicInteger();
+        private volatile CompiledTemplate _compiled;
+
+        Entry(final List<?> chunks) {
+            _chunks = chunks;
+        }
+    }
+
+    private static final Logger _theLog = Logger.getLogger(TemplateCompiler.class);
+
+    private final int _threshold;
+    private final Charset _literalCharset;
+    private final PropertyAccessors _accessors;
+    private final ConcurrentMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+
+    TemplateCompiler(final int threshold, final PropertyAccessors accessors) {
+        this(threshold, null, accessors);
+    }
+
+    /**
+     * @param literalCharset if not null, compiled templates carry their
+     *                       literal text pre-encoded in this charset
+     */
+    TemplateCompiler(final int threshold, final Charset literalCharset, final PropertyAccessors accessors) {
+        _threshold = threshold;
+        _literalCharset = literalCharset;
+        _accessors = accessors;
+    }
+
+    boolean isEnabled() {
+        return _threshold > 0;
+    }
+
+    /**
+     * Counts a render of the template and returns its compiled form, or
+     * null while the template isn't hot yet.
+     */
+    CompiledTemplate compiledFor(final StringTemplate template) {
+        final String name = template.getName();
+        Entry entry = _entries.get(name);
+        if (entry == null || entry._chunks != template.getChunks()) {
+            final Entry created = new Entry(template.getChunks());
+            if (entry == null) {
+                entry = _entries.putIfAbsent(name, created);
+                if (entry == null) {
+                    entry = created;
+                }
+            } else {
+                _entries.replace(name, entry, created);
+                entry = created;
+            }
+        }
+        final CompiledTemplate compiled = entry._compiled;
+        if (compiled != null) {
+            return compiled;
+        }
+        if (entry._renders.incrementAndGet() == _threshold) {
+            final CompiledTemplate plan = CompiledTemplate.compile(template, _literalCharset, _accessors);
+            entry._compiled = plan;
+            if (_theLog.isDebugEnabled()) {
+                _theLog.debug("Compiled template [" + name + "] after " + _threshold + " renders, "
+                        + plan.getAttributeReferences() + " of " + plan.getSegments().length + " chunks read directly");
+            }
+            return plan;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Per-template render statistics, collected as a
+ * {@link TemplateRenderListener} and published over JMX.</p>
+ * <p/>
+ * <p>Enabled with the 'stringtemplate.metrics' context param; when it is
+ * off no listener is registered and writeTo doesn't time anything.</p>
+ */
+public class TemplateMetrics implements TemplateRenderListener, TemplateMetricsMBean {
+
+    private static final class Stats {
+        private final AtomicLong _renders = new AtomicLong();
+        private final AtomicLong _errors = new AtomicLong();
+        private final AtomicLong _bytes = new AtomicLong();
+        private final AtomicLong _cacheHits = new AtomicLong();
+        private final LatencyHistogram _latency = new LatencyHistogram();
+    }
+
+    private final ConcurrentMap<String, Stats> _stats = new ConcurrentHashMap<String, Stats>();
+    private final OutputCache _outputCache;
+
+    TemplateMetrics(final OutputCache outputCache) {
+        _outputCache = outputCache;
+    }
+
+    public void rendered(final String resolvedPath, final long durationNanos, final long bytesWritten, final boolean fromOutputCache) {
+        final Stats stats = statsFor(resolvedPath);
+        stats._renders.incrementAndGet();
+        stats._bytes.addAndGet(bytesWritten);
+        if (fromOutputCache) {
+            stats._cacheHits.incrementAndGet();
+        }
+        stats._latency.record(durationNanos / 1000L);
+    }
+
+    public void failed(final String resolvedPath, final long durationNanos, final Throwable error) {
+        final Stats stats = statsFor(resolvedPath);
+        stats._errors.incrementAndGet();
+        stats._latency.record(durationNanos / 1000L);
+    }
+
+    public long getRenderCount() {
+        long total = 0;
+        for (Stats stats : _stats.values()) {
+            total += stats._renders.get();
+        }
+        return total;
+    }
+
+    public long getErrorCount() {
+        long total = 0;
+        for (Stats stats : _stats.values()) {
+            total += stats._errors.get();
+        }
+        return total;
+    }
+
+    public long getBytesWritten() {
+        long total = 0;
+        for (Stats stats : _stats.values()) {
+            total += stats._bytes.get();
+        }
+        return total;
+    }
+
+    public long getOutputCacheHits() {
+        return _outputCache.getHits();
+    }
+
+    public long getOutputCacheMisses() {
+        return _outputCache.getMisses();
+    }
+
+    public String[] getTemplateSummaries() {
+        final List<String> summaries = new ArrayList<String>(_stats.size());
+        for (Map.Entry<String, Stats> entry : _stats.entrySet()) {
+            final Stats stats = entry.getValue();
+            final LatencyHistogram latency = stats._latency;
+            summaries.add(entry.getKey()
+                    + " renders=" + stats._renders.get()
+                    + " errors=" + stats._errors.get()
+                    + " bytes=" + stats._bytes.get()
+                    + " cacheHits=" + stats._cacheHits.get()
+                    + " p50=" + latency.getPercentile(50.0)
+                    + " p99=" + latency.getPercentile(99.0)
+                    + " max=" + latency.getMax());
+        }
+        Collections.sort(summaries);
+        return summaries.toArray(new String[summaries.size()]);
+    }
+
+    public void reset() {
+        _stats.clear();
+    }
+
+    private Stats statsFor(final String resolvedPath) {
+        Stats stats = _stats.get(resolvedPath);
+        if (stats == null) {
+            final Stats created = new Stats();
+            stats = _stats.putIfAbsent(resolvedPath, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+}
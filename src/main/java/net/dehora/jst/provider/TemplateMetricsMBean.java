@@ -0,0 +1,43 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+/**
+ * JMX view of the {@link TemplateMetrics} kept by a
+ * {@link StringTemplateProvider}. Latencies are in microseconds.
+ */
+public interface TemplateMetricsMBean {
+
+    long getRenderCount();
+
+    long getErrorCount();
+
+    long getBytesWritten();
+
+    long getOutputCacheHits();
+
+    long getOutputCacheMisses();
+
+    /**
+     * One line per resolved template path, with its render and error
+     * counts, bytes written, cache hits and latency percentiles.
+     */
+    String[] getTemplateSummaries();
+
+    void reset();
+}
@@ -0,0 +1,44 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+/**
+ * <p>Told about every page the {@link StringTemplateProvider} writes.</p>
+ * <p/>
+ * <p>Listeners are called on the request thread once the page has been
+ * written, so they should return quickly and must be thread safe.
+ * Implementations named in the 'stringtemplate.render.listeners' context
+ * param need a public no-argument constructor.</p>
+ */
+public interface TemplateRenderListener {
+
+    /**
+     * @param resolvedPath    the template path returned by resolve()
+     * @param durationNanos   time taken to produce and write the page
+     * @param bytesWritten    encoded size of the page
+     * @param fromOutputCache true if the page came from the output cache
+     */
+    void rendered(String resolvedPath, long durationNanos, long bytesWritten, boolean fromOutputCache);
+
+    /**
+     * @param resolvedPath  the template path returned by resolve()
+     * @param durationNanos time taken before the error
+     * @param error         the error; it has already been logged
+     */
+    void failed(String resolvedPath, long durationNanos, Throwable error);
+}
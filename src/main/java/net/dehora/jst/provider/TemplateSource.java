@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * <p>Where the {@link StringTemplateProvider} reads template and group
+ * files from.</p>
+ * <p/>
+ * <p>Files are named by absolute, '/' separated paths made from the
+ * 'stringtemplate.template.path' context param, e.g.
+ * <tt>/WEB-INF/pages/home.st</tt>. Sources are called from request threads
+ * and must be thread safe. Implementations named in the
+ * 'stringtemplate.template.source' context param need a public no-argument
+ * constructor.</p>
+ */
+public interface TemplateSource {
+
+    /**
+     * @return true if there is a file at the path
+     */
+    boolean exists(String path);
+
+    /**
+     * @return the file's contents, or null if there is no file at the path
+     */
+    InputStream open(String path) throws IOException;
+
+    /**
+     * Lists the paths directly beneath a directory path ending in '/', with
+     * subdirectories ending in '/', as ServletContext.getResourcePaths does.
+     *
+     * @return the paths, or null if the directory is empty, missing or
+     *         can't be listed
+     */
+    Set<String> list(String directory);
+}
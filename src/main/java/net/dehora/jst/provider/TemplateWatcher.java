@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dehora.jst.provider;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Watches the template files of an exploded webapp from a background
+ * thread and reports the ones that changed, so request threads never
+ * check templates for staleness.</p>
+ * <p/>
+ * <p>Files are named by their servlet context resource path, e.g.
+ * <tt>/WEB-INF/pages/home.st</tt>.</p>
+ */
+class TemplateWatcher implements Runnable {
+
+    interface Listener {
+        void templateChanged(String resourcePath);
+
+        void templateRemoved(String resourcePath);
+    }
+
+    private static final Logger _theLog = Logger.getLogger(TemplateWatcher.class);
+
+    private final File _directory;
+    private final String _resourcePath;
+    private final String[] _extensions;
+    private final long _intervalMillis;
+    private final Listener _listener;
+    private final Map<String, Long> _lastModified = new HashMap<String, Long>();
+    private volatile Thread _thread;
+
+    /**
+     * @param directory    the directory on disk holding the templates
+     * @param resourcePath the servlet context path of that directory
+     * @param extensions   the file extensions to watch
+     */
+    TemplateWatcher(final File directory, final String resourcePath, final String[] extensions,
+                    final long intervalMillis, final Listener listener) {
+        _directory = directory;
+        _resourcePath = resourcePath.endsWith("/") ? resourcePath.substring(0, resourcePath.length() - 1) : resourcePath;
+        _extensions = extensions;
+        _intervalMillis = intervalMillis;
+        _listener = listener;
+    }
+
+    void start() {
+        scan(_directory, _resourcePath, _lastModified);
+        final Thread thread = new Thread(this, "TemplateWatcher-" + _resourcePath);
+        thread.setDaemon(true);
+        _thread = thread;
+        thread.start();
+    }
+
+    void stop() {
+        final Thread thread = _thread;
+        _thread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public void run() {
+        while (_thread == Thread.currentThread()) {
+            try {
+                Thread.sleep(_intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                check();
+            } catch (RuntimeException e) {
+                _theLog.warn("Error checking templates under [" + _directory + "]", e);
+            }
+        }
+    }
+
+    private void check() {
+        final Map<String, Long> current = new HashMap<String, Long>(_lastModified.size() * 2);
+        scan(_directory, _resourcePath, current);
+        for (Map.Entry<String, Long> entry : current.entrySet()) {
+            if (!entry.getValue().equals(_lastModified.get(entry.getKey()))) {
+                if (_theLog.isDebugEnabled()) {
+                    _theLog.debug("Template changed [" + entry.getKey() + "]");
+                }
+                _listener.templateChanged(entry.getKey());
+            }
+        }
+        final Set<String> removed = new HashSet<String>(_lastModified.keySet());
+        removed.removeAll(current.keySet());
+        for (String resourcePath : removed) {
+            if (_theLog.isDebugEnabled()) {
+                _theLog.debug("Template removed [" + resourcePath + "]");
+            }
+            _listener.templateRemoved(resourcePath);
+        }
+        _lastModified.clear();
+        _lastModified.putAll(current);
+    }
+
+    private void scan(final File directory, final String resourcePath, final Map<String, Long> found) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String path = resourcePath + "/" + file.getName();
+            if (file.isDirectory()) {
+                scan(file, path, found);
+            } else if (isWatched(file.getName())) {
+                found.put(path, file.lastModified());
+            }
+        }
+    }
+
+    private boolean isWatched(final String fileName) {
+        for (String extension : _extensions) {
+            if (fileName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}